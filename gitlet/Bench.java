@@ -0,0 +1,334 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+/** Benchmarks of gitlet internals, run with
+ *  java gitlet.Bench <NAME> <ARGS> in a scratch directory (benchmarks
+ *  that need a repository make one there). Each prints one line per
+ *  configuration measured.
+ *  @author Heming Wu
+ */
+public class Bench {
+
+    /** Number of timed runs per configuration; the median is reported. */
+    private static final int RUNS = 5;
+
+    /** Usage: java gitlet.Bench NAME ARGS. */
+    public static void main(String... args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: java gitlet.Bench scan [FILES] [KB]");
+            System.out.println("       java gitlet.Bench find [COMMITS]");
+            System.out.println("       java gitlet.Bench checkout [FILES] [KB]");
+            System.out.println("       java gitlet.Bench hash [FILES] [KB]");
+            System.out.println("       java gitlet.Bench commit [COMMITS]");
+            System.out.println("       java gitlet.Bench startup [RUNS]");
+            return;
+        }
+        switch (args[0]) {
+        case "scan":
+            scan(intArg(args, 1, 20000), intArg(args, 2, 16));
+            break;
+        case "find":
+            find(intArg(args, 1, 5000));
+            break;
+        case "checkout":
+            checkout(intArg(args, 1, 5000), intArg(args, 2, 16));
+            break;
+        case "hash":
+            hash(intArg(args, 1, 200), intArg(args, 2, 1024));
+            break;
+        case "commit":
+            commit(intArg(args, 1, 20000));
+            break;
+        case "startup":
+            startup(intArg(args, 1, 20));
+            break;
+        default:
+            System.out.println("No benchmark with that name exists.");
+        }
+    }
+
+    /** Time the working tree scan of FILES files of KB kilobytes each
+     * (100 files per directory) with 1, 2, 4, ... threads, up to the
+     * number of cores. */
+    static void scan(int files, int kb) throws IOException {
+        File root = Files.createTempDirectory("gitlet-bench").toFile();
+        Random random = new Random(61);
+        byte[] content = new byte[kb * 1024];
+        for (int i = 0; i < files; i += 1) {
+            File dir = Utils.join(root, "d" + (i / 100));
+            dir.mkdir();
+            random.nextBytes(content);
+            Utils.writeContents(Utils.join(dir, "f" + i), content);
+        }
+        System.out.printf("scan: %d files of %d KB%n", files, kb);
+        double base = 0;
+        for (int threads : threadCounts()) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            WorkingTree.scan(root, pool, p -> true, false);
+            long[] times = new long[RUNS];
+            for (int r = 0; r < RUNS; r += 1) {
+                long start = System.nanoTime();
+                WorkingTree.scan(root, pool, p -> true, false);
+                times[r] = System.nanoTime() - start;
+            }
+            pool.shutdown();
+            double ms = median(times) / 1e6;
+            if (threads == 1) {
+                base = ms;
+            }
+            System.out.printf("threads %3d: %9.1f ms  speedup %5.2fx%n",
+                              threads, ms, base / ms);
+        }
+        Utils.deleteRecursively(root);
+    }
+
+    /** Time loading and matching every commit of a repository with
+     * COMMITS commits, as find and global-log do, with 1, 2, 4, ...
+     * threads up to the number of cores. */
+    static void find(int commits) throws IOException {
+        if (!Commit.GITLET.exists()) {
+            new Commander(new String[] {"init"}).init();
+        }
+        for (int i = Commit.allCommitIds().size(); i < commits; i += 1) {
+            new Commit("bench commit " + i, Branch.getHeadID());
+        }
+        System.out.printf("find: %d commits%n", commits);
+        PrintWriter out = new PrintWriter(Writer.nullWriter());
+        double base = 0;
+        for (int threads : threadCounts()) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long[] times = new long[RUNS];
+            for (int r = 0; r < RUNS; r += 1) {
+                long start = System.nanoTime();
+                Commit.scanCommits(pool, (id, c) ->
+                    c.getMessage().equals("no such message") ? id : null, out);
+                times[r] = System.nanoTime() - start;
+            }
+            pool.shutdown();
+            double ms = median(times) / 1e6;
+            if (threads == 1) {
+                base = ms;
+            }
+            System.out.printf("threads %3d: %9.1f ms  speedup %5.2fx%n",
+                              threads, ms, base / ms);
+        }
+    }
+
+    /** Time writing out a commit of FILES files of KB kilobytes each (100
+     * files per directory) into an empty working directory, as a fresh
+     * checkout does, with 1, 2, 4, ... writers up to WorkingTree.WRITERS.
+     */
+    static void checkout(int files, int kb) throws IOException {
+        if (!Commit.GITLET.exists()) {
+            new Commander(new String[] {"init"}).init();
+        }
+        Random random = new Random(61);
+        byte[] content = new byte[kb * 1024];
+        HashMap<String, String> blobs = new HashMap<>();
+        for (int i = 0; i < files; i += 1) {
+            String path = "d" + (i / 100) + "/f" + i;
+            File f = Utils.join(Commit.CWD, path);
+            f.getParentFile().mkdirs();
+            random.nextBytes(content);
+            Utils.writeContents(f, content);
+            blobs.put(path, new Blob(path).save());
+        }
+        System.out.printf("checkout: %d files of %d KB%n", files, kb);
+        double base = 0;
+        for (int threads = 1; threads <= WorkingTree.WRITERS; threads *= 2) {
+            long[] times = new long[RUNS];
+            for (int r = 0; r < RUNS; r += 1) {
+                for (int i = 0; i < files / 100 + 1; i += 1) {
+                    Utils.deleteRecursively(Utils.join(Commit.CWD, "d" + i));
+                }
+                long start = System.nanoTime();
+                WorkingTree.apply(blobs, threads);
+                times[r] = System.nanoTime() - start;
+            }
+            double ms = median(times) / 1e6;
+            if (threads == 1) {
+                base = ms;
+            }
+            System.out.printf("writers %3d: %9.1f ms  speedup %5.2fx%n",
+                              threads, ms, base / ms);
+        }
+    }
+
+    /** Time hashing FILES files of KB kilobytes each: streamed through
+     * Utils.copyAndHash, and read or mapped from a channel by each of the
+     * Utils.Hash functions, with 1, 2, 4, ... threads up to the number of
+     * cores. */
+    static void hash(int files, int kb) throws IOException {
+        File root = Files.createTempDirectory("gitlet-bench").toFile();
+        Random random = new Random(61);
+        byte[] content = new byte[kb * 1024];
+        List<File> all = new ArrayList<>();
+        for (int i = 0; i < files; i += 1) {
+            random.nextBytes(content);
+            File f = Utils.join(root, "f" + i);
+            Utils.writeContents(f, content);
+            all.add(f);
+        }
+        double mb = (double) files * kb / 1024;
+        System.out.printf("hash: %d files of %d KB%n", files, kb);
+        LinkedHashMap<String, Consumer<File>> ways = new LinkedHashMap<>();
+        ways.put("stream sha1", f -> {
+            try (InputStream in = new FileInputStream(f)) {
+                Utils.copyAndHash(in, null);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        });
+        for (Utils.Hash h : Utils.Hash.values()) {
+            ways.put("channel " + h.name().toLowerCase(), f -> {
+                try (FileChannel in = FileChannel.open(f.toPath())) {
+                    h.hash(in);
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            });
+        }
+        for (Map.Entry<String, Consumer<File>> way : ways.entrySet()) {
+            for (int threads : threadCounts()) {
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                long[] times = new long[RUNS];
+                for (int r = 0; r < RUNS; r += 1) {
+                    long start = System.nanoTime();
+                    pool.submit(() -> all.parallelStream()
+                                .forEach(way.getValue())).join();
+                    times[r] = System.nanoTime() - start;
+                }
+                pool.shutdown();
+                System.out.printf("%-15s threads %3d: %8.1f MB/s%n",
+                                  way.getKey(), threads,
+                                  mb / (median(times) / 1e9));
+            }
+        }
+        Utils.deleteRecursively(root);
+    }
+
+    /** Time writing and reading the head commit of a repository COMMITS
+     * times, in memory, with the commit encoding and with Java
+     * serialization. */
+    static void commit(int commits) throws IOException {
+        if (!Commit.GITLET.exists()) {
+            new Commander(new String[] {"init"}).init();
+            new Commit("bench commit", Branch.getHeadID());
+        }
+        Commit c = Commit.getCommitObject(Branch.getHeadID());
+        System.out.printf("commit: %d commits%n", commits);
+        LinkedHashMap<String, Consumer<Commit>> ways = new LinkedHashMap<>();
+        ways.put("encoding", x -> {
+            try {
+                Commit.decode(new ByteArrayInputStream(x.encode()));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        });
+        ways.put("serialization", x -> Utils.readObject(
+            new ByteArrayInputStream(Utils.serialize(x)), Commit.class));
+        for (Map.Entry<String, Consumer<Commit>> way : ways.entrySet()) {
+            long[] times = new long[RUNS];
+            for (int r = 0; r < RUNS; r += 1) {
+                long start = System.nanoTime();
+                for (int i = 0; i < commits; i += 1) {
+                    way.getValue().accept(c);
+                }
+                times[r] = System.nanoTime() - start;
+            }
+            System.out.printf("%-15s %9.1f ms  %6d bytes%n", way.getKey(),
+                              median(times) / 1e6,
+                              way.getKey().equals("encoding")
+                              ? c.encode().length
+                              : Utils.serialize(c).length);
+        }
+    }
+
+    /** Time RUNS runs of status, each in a new JVM, in a new repository:
+     * from the class directory without and with the JDK's own
+     * class-data-sharing archive, and from gitlet.jar with the archive
+     * made by 'make cds', if both are next to the class directory. */
+    static void startup(int runs) throws IOException, InterruptedException {
+        if (!Commit.GITLET.exists()) {
+            new Commander(new String[] {"init"}).init();
+        }
+        String java = Utils.join(new File(System.getProperty("java.home")),
+                                 "bin", "java").getPath();
+        String classes = System.getProperty("java.class.path");
+        File jar = Utils.join(new File(classes), "gitlet.jar");
+        File archive = Utils.join(new File(classes), "gitlet.jsa");
+        LinkedHashMap<String, List<String>> ways = new LinkedHashMap<>();
+        ways.put("no sharing", List.of(java, "-Xshare:off", "-cp", classes,
+                                       "gitlet.Main", "status"));
+        ways.put("classes", List.of(java, "-cp", classes, "gitlet.Main",
+                                    "status"));
+        if (jar.isFile() && archive.isFile()) {
+            ways.put("archive", List.of(java, "-XX:SharedArchiveFile="
+                                        + archive.getPath(),
+                                        "-XX:TieredStopAtLevel=1", "-cp",
+                                        jar.getPath(), "gitlet.Main",
+                                        "status"));
+        }
+        System.out.printf("startup: %d runs of status%n", runs);
+        for (Map.Entry<String, List<String>> way : ways.entrySet()) {
+            ProcessBuilder builder = new ProcessBuilder(way.getValue())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT);
+            long[] times = new long[runs];
+            for (int r = 0; r < runs; r += 1) {
+                long start = System.nanoTime();
+                if (builder.start().waitFor() != 0) {
+                    throw new IOException(way.getKey() + ": status failed");
+                }
+                times[r] = System.nanoTime() - start;
+            }
+            System.out.printf("%-15s %9.1f ms%n", way.getKey(),
+                              median(times) / 1e6);
+        }
+        if (!ways.containsKey("archive")) {
+            System.out.println("archive: none, run 'make cds' first");
+        }
+    }
+
+    /** Return 1, 2, 4, ... up to and including the number of cores. */
+    static List<Integer> threadCounts() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        ArrayList<Integer> result = new ArrayList<>();
+        for (int t = 1; t < cores; t *= 2) {
+            result.add(t);
+        }
+        result.add(cores);
+        return result;
+    }
+
+    /** Return the median of TIMES. */
+    static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /** Return ARGS[I] as an int, or DEFAULTVALUE if there's no such
+     * argument. */
+    static int intArg(String[] args, int i, int defaultValue) {
+        return args.length > i ? Integer.parseInt(args[i]) : defaultValue;
+    }
+}
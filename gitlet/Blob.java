@@ -1,44 +1,101 @@
 package gitlet;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /** A blob representation. A blob contains
  * the content of a file that has been added to the
- * staging area.
+ * staging area. The content is never held in memory as a whole:
+ * it is streamed from the working file through the SHA-1 digest
+ * and into the object file in fixed-size buffers.
  * @author Heming Wu
  */
 public class Blob {
     /** Current working directory. */
     static final File CWD = new File(".");
+    /** Location of Object directory, containing blobs. */
+    static final File OBJECT = StagingArea.OBJECT;
 
-    /** Serialize the file FILENAME's content into a blob. */
+    /** Make a blob of the file FILENAME in the working directory. */
     public Blob(String filename) {
-        try {
-            _name = filename;
-            File file = Utils.join(CWD, filename);
-            assert file.exists();
-            _content = Utils.readContentsAsString(file);
-            _byteContent = Utils.serialize(_content);
-        } catch (AssertionError a) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+        _name = filename;
+        _file = Utils.join(CWD, filename);
+        if (!_file.isFile()) {
+            throw new GitletException("Incorrect operands.");
         }
     }
 
+    /** Stream the file's raw bytes into the Object directory, hashing
+     * them on the way and compressing them with the current Codec.
+     * @return sha1 name of the saved blob.
+     */
+    String save() throws IOException {
+        OBJECT.mkdir();
+        File tmp = File.createTempFile("blob", ".tmp", OBJECT);
+        StatCache.Entry stat = StatCache.stat(_name);
+        String shaName;
+        try (InputStream in = new FileInputStream(_file);
+             OutputStream out =
+                 Codec.current().wrap(new FileOutputStream(tmp))) {
+            shaName = Utils.copyAndHash(in, out);
+        }
+        File target = Utils.join(OBJECT, shaName);
+        if (target.exists() || Pack.contains(shaName)) {
+            tmp.delete();
+        } else {
+            Files.move(tmp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            ObjectIndex.add(shaName, Pack.BLOB);
+        }
+        StatCache.record(_name, stat, shaName);
+        return shaName;
+    }
 
-
-    /** Get readable String content of the file.
-     * @return Content of the file.
-     * */
-    String getContent() {
-        return _content;
+    /** Save CONTENT as a blob that has no working file yet, such as a
+     * file with merge conflict markers, unless it already exists. Like
+     * save(), it goes through a temporary file.
+     * @param content The file's content.
+     * @return sha1 name of the blob.
+     */
+    static String save(byte[] content) {
+        String shaName = Utils.sha1(content);
+        File target = Utils.join(OBJECT, shaName);
+        if (target.exists() || Pack.contains(shaName)) {
+            return shaName;
+        }
+        OBJECT.mkdir();
+        try {
+            File tmp = File.createTempFile("blob", ".tmp", OBJECT);
+            try (OutputStream out =
+                     Codec.current().wrap(new FileOutputStream(tmp))) {
+                out.write(content);
+            }
+            Files.move(tmp.toPath(), target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        ObjectIndex.add(shaName, Pack.BLOB);
+        return shaName;
     }
 
-    /** Get the serialized content of the file.
-     * @return Serialized content.
-     * */
-    byte[] getSerialized() {
-        return _byteContent;
+    /** Get the sha1 name FILE would have as a blob, without saving it.
+     * @param file A file in the working directory.
+     * @return sha1 name of the file's content.
+     */
+    static String hash(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            return Utils.copyAndHash(in, null);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
     /** Get name of the tile.
@@ -51,10 +108,7 @@ public class Blob {
 
     /** Name of the file. */
     private String _name;
-    /** Content of the file. */
-    private String _content;
-    /** Serialized content of the file. */
-    private byte[] _byteContent;
+    /** The working file this blob is made of. */
+    private File _file;
 
 }
-
@@ -1,7 +1,15 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /** A branch representation which contains
  * all created branch and the Head pointer.
@@ -14,8 +22,15 @@ public class Branch {
     static final File GITLET = Utils.join(CWD, ".gitlet");
     /** Location of the Head file. */
     static final File HEAD = Utils.join(GITLET, "HEAD");
-    /** Location of the file containing all branches. */
+    /** Location of the file containing all branches, one per line: the
+     * sha1 name of its commit, a space, and its name. A repository made
+     * before this format has a serialized map there instead, read with
+     * Utils.readObject and rewritten as text on the next change. */
     static final File BRANCHES = Utils.join(GITLET, "Branches");
+    /** The branches last read or written, keyed by the version of
+     * BRANCHES then. */
+    private static final ObjectCache<HashMap<String, String>> CACHE =
+        new ObjectCache<>("branches", 1, m -> 1);
 
     /** Make a new branch.
      * @param bName Name of the new branch
@@ -42,36 +57,94 @@ public class Branch {
         Utils.writeContents(HEAD, _head);
     }
 
-    /** Serialize the container of all branches.
+    /** Write the container of all branches to BRANCHES.
      * (In git it's in the /ref directory).
      */
     public static void persistence() {
-        Utils.writeObject(BRANCHES, _allBranches);
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> e : _allBranches.entrySet()) {
+            text.append(e.getValue()).append(' ').append(e.getKey())
+                .append('\n');
+        }
+        try {
+            File tmp = File.createTempFile("Branches", ".tmp", GITLET);
+            Files.write(tmp.toPath(),
+                        text.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), BRANCHES.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        CACHE.put(version(), new HashMap<>(_allBranches));
     }
 
-    /** Get back the container of all branches from it's serialized file (the
-     *  `branches` file).
-     * @return The container (a map) of all branches.
+    /** Get back the container of all branches from the `branches` file,
+     *  unless its version is the one last read or written.
+     * @return A copy of the container (a map) of all branches.
      */
-    @SuppressWarnings("unchecked")
     public static HashMap<String, String> getAllBranches() {
-        HashMap<String, String> result
-                = Utils.readObject(BRANCHES, HashMap.class);
+        String version = version();
+        HashMap<String, String> result = CACHE.get(version);
+        if (result == null) {
+            result = parse(Utils.readContents(BRANCHES));
+            CACHE.put(version, result);
+        }
+        return new HashMap<>(result);
+    }
+
+    /** Get the modification time, length and inode of BRANCHES. It is
+     * replaced by a new file on every write, so its inode changes even
+     * when its length and (coarse) modification time don't. */
+    private static String version() {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(
+                BRANCHES.toPath(), BasicFileAttributes.class);
+            return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) + "/"
+                + attrs.size() + "/" + attrs.fileKey();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Drop the cached branches, so the next use reads them again. */
+    static void reset() {
+        CACHE.clear();
+    }
+
+    /** Get the branches in BYTES, the content of BRANCHES in either
+     * format. Only a serialized map needs ObjectInputStream, so a text
+     * one doesn't load the serialization machinery. */
+    @SuppressWarnings("unchecked")
+    private static HashMap<String, String> parse(byte[] bytes) {
+        if (bytes.length >= 2 && (bytes[0] & 0xff) == 0xac
+            && (bytes[1] & 0xff) == 0xed) {
+            return Utils.readObject(new ByteArrayInputStream(bytes),
+                                    HashMap.class);
+        }
+        HashMap<String, String> result = new HashMap<>();
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            int space = text.indexOf(' ', start);
+            if (end < 0 || space < 0 || space > end) {
+                throw Utils.error("Corrupt branches file.");
+            }
+            result.put(text.substring(space + 1, end),
+                       text.substring(start, space));
+            start = end + 1;
+        }
         return result;
     }
 
     /** Get the commit the Head is associated with, no matter if
-     * it's pointing at a branch or directly at a commit.
+     * it's pointing at a branch or directly at a commit. Loaded through
+     * ObjectCache.COMMITS, so asking again is cheap.
      * @return The commit object Head is associated with.
      */
     public static Commit getCurrentCommit() {
-        String name = getHead();
-        HashMap<String, String> allB = getAllBranches();
-        if (allB.keySet().contains(name)) {
-            String commitSha = allB.get(name);
-            return Commit.getCommitObject(commitSha);
-        }
-        return Commit.getCommitObject(name);
+        return Commit.getCommitObject(getHeadID());
     }
 
 
@@ -105,14 +178,14 @@ public class Branch {
         persistence();
     }
 
-    /** Get the Commit ID the Head is pointing to. Assume it's not
-     * currently pointing to a commit (So it's now pointing to a branch).
+    /** Get the Commit ID the Head is pointing to, no matter if it's
+     * pointing at a branch or directly at a commit.
      * @return The sha1 ID of the commit.
      */
     public static String getHeadID() {
         String name = getHead();
         HashMap<String, String> allB = getAllBranches();
-        return allB.get(name);
+        return allB.containsKey(name) ? allB.get(name) : name;
     }
 
 
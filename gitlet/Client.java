@@ -0,0 +1,28 @@
+package gitlet;
+
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/** A thin client of the Daemon: sends the command in its arguments to
+ *  the daemon of the repository in the current directory and prints
+ *  what it replies. Without a daemon, runs the command itself as Main
+ *  does, so it can always be used in place of Main.
+ *  @author Heming Wu
+ */
+public class Client {
+
+    /** Usage: java gitlet.Client ARGS, where ARGS contains
+     *  <COMMAND> <OPERAND> .... */
+    public static void main(String... args) throws Exception {
+        SocketChannel channel = Daemon.connect();
+        if (channel == null) {
+            Main.main(args);
+            return;
+        }
+        try (channel) {
+            Daemon.send(channel, args);
+            Channels.newInputStream(channel).transferTo(System.out);
+        }
+        System.out.flush();
+    }
+}
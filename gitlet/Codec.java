@@ -0,0 +1,557 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/** The compression used for objects in the .gitlet directory. Every
+ * compressed object starts with a five byte header: four MAGIC bytes and
+ * the id of the codec that wrote it. Objects without the header are
+ * read back as they are, so objects written before compression existed
+ * still work, except for blobs from before blobs were stored as raw
+ * bytes: those hold the file's content as a serialized String, which is
+ * unwrapped into its UTF-8 bytes, as that version wrote files.
+ * @author Heming Wu
+ */
+enum Codec {
+    /** Store the bytes as they are (but still with a header). */
+    NONE(0),
+    /** java.util.zip Deflate. Smallest output. */
+    DEFLATE(1),
+    /** LZ4-style block compression. Faster, but larger than DEFLATE. */
+    LZ4(2);
+
+    /** First bytes of every object written through a codec. */
+    static final byte[] MAGIC = {(byte) 0xc7, 'G', 'L', 'O'};
+    /** Length of the object header. */
+    static final int HEADER_LENGTH = MAGIC.length + 1;
+    /** First bytes of a Java-serialized object. */
+    static final byte[] SERIALIZED = {(byte) 0xac, (byte) 0xed, 0, 5};
+    /** Type codes of a serialized String and of a serialized String of
+     * more than 65535 bytes. */
+    private static final int TC_STRING = 0x74, TC_LONGSTRING = 0x7c;
+    /** Name of the system property selecting the codec for new objects. */
+    static final String PROPERTY = "gitlet.codec";
+
+    /** A codec whose id in the object header is ID. */
+    Codec(int id) {
+        _id = (byte) id;
+    }
+
+    /** Get the codec new objects are written with. Selected with
+     * -Dgitlet.codec=none|deflate|lz4, DEFLATE by default.
+     * @return the codec.
+     */
+    static Codec current() {
+        String name = System.getProperty(PROPERTY);
+        if (name == null) {
+            return DEFLATE;
+        }
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException excp) {
+            throw Utils.error("Unknown codec %s.", name);
+        }
+    }
+
+    /** Get the codec with header id ID.
+     * @param id The id byte from an object header.
+     * @return the codec, or null if there's none with that id.
+     */
+    static Codec fromId(int id) {
+        for (Codec c : values()) {
+            if (c._id == id) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /** Get the header id of this codec.
+     * @return the id byte.
+     */
+    byte id() {
+        return _id;
+    }
+
+    /** Write the object header to OUT and return a stream that compresses
+     * everything written to it into OUT. Closing the returned stream
+     * closes OUT.
+     * @param out Where the object is written to.
+     * @return the compressing stream.
+     */
+    OutputStream wrap(OutputStream out) throws IOException {
+        out = new BufferedOutputStream(out, Utils.BUFFER_SIZE);
+        out.write(MAGIC);
+        out.write(_id);
+        return compress(out);
+    }
+
+    /** Return a stream that compresses into OUT, without a header.
+     * @param out Where the compressed bytes are written to.
+     * @return the compressing stream.
+     */
+    OutputStream compress(OutputStream out) {
+        switch (this) {
+        case DEFLATE:
+            return new DeflaterOutputStream(out);
+        case LZ4:
+            return new LzOutputStream(out);
+        default:
+            return out;
+        }
+    }
+
+    /** Return a stream that decompresses what this codec wrote into IN,
+     * without a header.
+     * @param in The compressed bytes.
+     * @return the decompressing stream.
+     */
+    InputStream decompress(InputStream in) {
+        switch (this) {
+        case DEFLATE:
+            return new InflaterInputStream(in);
+        case LZ4:
+            return new LzInputStream(in);
+        default:
+            return in;
+        }
+    }
+
+    /** Return a stream of the original bytes of the object stored in IN.
+     * If IN doesn't start with an object header, it's returned as it is,
+     * unless it's a serialized String, which is unwrapped. Closing the
+     * returned stream closes IN.
+     * @param in Stream of a stored object.
+     * @return the decompressing stream.
+     */
+    static InputStream open(InputStream in) throws IOException {
+        in = new BufferedInputStream(in, Utils.BUFFER_SIZE);
+        in.mark(HEADER_LENGTH);
+        byte[] header = new byte[HEADER_LENGTH];
+        int n = in.readNBytes(header, 0, HEADER_LENGTH);
+        Codec codec = null;
+        if (n == HEADER_LENGTH
+            && Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            codec = fromId(header[MAGIC.length]);
+        }
+        if (codec == null) {
+            in.reset();
+            if (n == HEADER_LENGTH && isSerializedString(header)) {
+                String content = Utils.readObject(in, String.class);
+                return new ByteArrayInputStream(
+                    content.getBytes(StandardCharsets.UTF_8));
+            }
+            return in;
+        }
+        return codec.decompress(in);
+    }
+
+    /** Check if HEADER, the first HEADER_LENGTH bytes of an object
+     * without an object header, start a serialized String. */
+    private static boolean isSerializedString(byte[] header) {
+        int type = header[SERIALIZED.length] & 0xff;
+        return Arrays.equals(header, 0, SERIALIZED.length,
+                             SERIALIZED, 0, SERIALIZED.length)
+            && (type == TC_STRING || type == TC_LONGSTRING);
+    }
+
+    /** Copy the original bytes of the object stored in the LENGTH bytes of
+     * SRC at OFFSET into DEST, holding at most a chunk of it in memory.
+     * Objects stored uncompressed (NONE, or with no header) are copied
+     * with FileChannel.transferTo, so they never go through the heap.
+     * DEFLATE objects up to 2 GiB are memory-mapped and inflated straight
+     * into a direct buffer; the other codecs, and larger objects,
+     * decompress through a heap chunk of BUFFER_SIZE bytes. A serialized
+     * String from before blobs were raw bytes is unwrapped through open,
+     * which reads it whole.
+     * @param src The loose object file or the pack.
+     * @param offset Where the object starts in SRC.
+     * @param length Stored length of the object.
+     * @param dest The file written to, at its current position.
+     */
+    static void transfer(FileChannel src, long offset, long length,
+                         FileChannel dest) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        if (length >= HEADER_LENGTH) {
+            src.read(header, offset);
+        }
+        header.flip();
+        Codec codec = null;
+        if (header.remaining() == HEADER_LENGTH
+            && header.slice(0, MAGIC.length).equals(ByteBuffer.wrap(MAGIC))) {
+            codec = fromId(header.get(MAGIC.length));
+        }
+        if (codec == null && header.remaining() == HEADER_LENGTH
+            && isSerializedString(header.array())) {
+            try (InputStream in = open(new Pack.Region(src, offset, length))) {
+                Utils.copy(in, Channels.newOutputStream(dest));
+            }
+            return;
+        }
+        if (codec != null) {
+            offset += HEADER_LENGTH;
+            length -= HEADER_LENGTH;
+        }
+        if (codec == null || codec == NONE) {
+            long done = 0;
+            while (done < length) {
+                done += src.transferTo(offset + done, length - done, dest);
+            }
+            return;
+        }
+        if (length > Integer.MAX_VALUE) {
+            try (InputStream in = codec.decompress(
+                     new Pack.Region(src, offset, length))) {
+                Utils.copy(in, Channels.newOutputStream(dest));
+            }
+            return;
+        }
+        ByteBuffer mapped = src.map(FileChannel.MapMode.READ_ONLY,
+                                    offset, length);
+        ByteBuffer buf = ByteBuffer.allocateDirect(Utils.BUFFER_SIZE);
+        if (codec == DEFLATE) {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(mapped);
+                while (!inflater.finished()) {
+                    if (inflater.inflate(buf) == 0 && !inflater.finished()
+                        && inflater.needsInput()) {
+                        throw new IOException("corrupt compressed object");
+                    }
+                    drain(buf, dest);
+                }
+            } catch (DataFormatException excp) {
+                throw new IOException(excp.getMessage());
+            } finally {
+                inflater.end();
+            }
+        } else {
+            byte[] chunk = new byte[Utils.BUFFER_SIZE];
+            try (InputStream in = codec.decompress(new MappedStream(mapped))) {
+                int n;
+                while ((n = in.read(chunk)) != -1) {
+                    buf.put(chunk, 0, n);
+                    drain(buf, dest);
+                }
+            }
+        }
+    }
+
+    /** Write everything put into BUF so far to DEST, and clear BUF. */
+    private static void drain(ByteBuffer buf, FileChannel dest)
+        throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            dest.write(buf);
+        }
+        buf.clear();
+    }
+
+    /** A stream over the remaining bytes of a (mapped) buffer. */
+    private static class MappedStream extends InputStream {
+        /** A stream over BUF. */
+        MappedStream(ByteBuffer buf) {
+            _buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return _buf.hasRemaining() ? _buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!_buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, _buf.remaining());
+            _buf.get(b, off, len);
+            return len;
+        }
+
+        /** The buffer read. */
+        private final ByteBuffer _buf;
+    }
+
+    /** Header id of this codec. */
+    private final byte _id;
+
+    /** Size of the blocks LzOutputStream compresses independently. Small
+     * enough that every match offset fits in two bytes. */
+    static final int LZ_BLOCK = 1 << 16;
+    /** Shortest match LzOutputStream encodes. */
+    private static final int MIN_MATCH = 4;
+    /** Number of bits in LzOutputStream's match hash table index. */
+    private static final int HASH_BITS = 14;
+
+    /** A stream that compresses in the LZ4 block style: each block is
+     * <raw length> <compressed length> <sequences>, each sequence being a
+     * token (literal length, match length), the literals, and a two byte
+     * backwards offset of the match. A compressed length of 0 means the
+     * block was stored raw because it didn't compress.
+     */
+    static class LzOutputStream extends OutputStream {
+        /** A stream compressing into OUT. */
+        LzOutputStream(OutputStream out) {
+            _out = new DataOutputStream(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (_len == _buf.length) {
+                flushBlock();
+            }
+            _buf[_len++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (_len == _buf.length) {
+                    flushBlock();
+                }
+                int n = Math.min(len, _buf.length - _len);
+                System.arraycopy(b, off, _buf, _len, n);
+                _len += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushBlock();
+            _out.close();
+        }
+
+        /** Compress and write out the buffered block. */
+        private void flushBlock() throws IOException {
+            if (_len == 0) {
+                return;
+            }
+            int n = compressBlock(_buf, _len, _scratch);
+            _out.writeInt(_len);
+            if (n >= _len) {
+                _out.writeInt(0);
+                _out.write(_buf, 0, _len);
+            } else {
+                _out.writeInt(n);
+                _out.write(_scratch, 0, n);
+            }
+            _len = 0;
+        }
+
+        /** Compress the first LEN bytes of SRC into DST.
+         * @return the compressed length, or at least LEN if the block
+         * doesn't compress.
+         */
+        private int compressBlock(byte[] src, int len, byte[] dst) {
+            Arrays.fill(_table, -1);
+            int ip = 0, anchor = 0, op = 0;
+            int limit = len - MIN_MATCH;
+            while (ip < limit) {
+                int seq = readInt(src, ip);
+                int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+                int ref = _table[h];
+                _table[h] = ip;
+                if (ref < 0 || readInt(src, ref) != seq) {
+                    ip += 1;
+                    continue;
+                }
+                int mlen = MIN_MATCH;
+                while (ip + mlen < len && src[ref + mlen] == src[ip + mlen]) {
+                    mlen += 1;
+                }
+                op = sequence(src, anchor, ip - anchor, ip - ref, mlen,
+                              dst, op);
+                if (op < 0) {
+                    return len;
+                }
+                ip += mlen;
+                anchor = ip;
+            }
+            op = sequence(src, anchor, len - anchor, 0, 0, dst, op);
+            return op < 0 ? len : op;
+        }
+
+        /** Write a sequence of LITS literals starting at SRC[START] and a
+         * match of MLEN bytes OFFSET bytes back (none if MLEN is 0) into
+         * DST at OP.
+         * @return the new end of DST, or -1 if it would overflow.
+         */
+        private static int sequence(byte[] src, int start, int lits,
+                                    int offset, int mlen, byte[] dst, int op) {
+            int mcode = mlen == 0 ? 0 : mlen - MIN_MATCH;
+            if (op + lits + lits / 255 + mcode / 255 + 8 > dst.length) {
+                return -1;
+            }
+            int token = op++;
+            dst[token] = (byte) ((Math.min(lits, 15) << 4)
+                                 | Math.min(mcode, 15));
+            op = length(lits, dst, op);
+            System.arraycopy(src, start, dst, op, lits);
+            op += lits;
+            if (mlen > 0) {
+                dst[op++] = (byte) offset;
+                dst[op++] = (byte) (offset >>> 8);
+                op = length(mcode, dst, op);
+            }
+            return op;
+        }
+
+        /** Write the part of length N that doesn't fit into a token nibble
+         * into DST at OP.
+         * @return the new end of DST.
+         */
+        private static int length(int n, byte[] dst, int op) {
+            if (n >= 15) {
+                n -= 15;
+                while (n >= 255) {
+                    dst[op++] = (byte) 255;
+                    n -= 255;
+                }
+                dst[op++] = (byte) n;
+            }
+            return op;
+        }
+
+        /** Underlying stream. */
+        private final DataOutputStream _out;
+        /** The block being filled. */
+        private final byte[] _buf = new byte[LZ_BLOCK];
+        /** Number of bytes in _buf. */
+        private int _len;
+        /** Compressed output of one block. */
+        private final byte[] _scratch = new byte[LZ_BLOCK];
+        /** Most recent position of each hashed four byte sequence. */
+        private final int[] _table = new int[1 << HASH_BITS];
+    }
+
+    /** Reads what LzOutputStream wrote. */
+    static class LzInputStream extends InputStream {
+        /** A stream decompressing IN. */
+        LzInputStream(InputStream in) {
+            _in = new DataInputStream(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (_pos == _len && !fillBlock()) {
+                return -1;
+            }
+            return _buf[_pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (_pos == _len && !fillBlock()) {
+                return -1;
+            }
+            int n = Math.min(len, _len - _pos);
+            System.arraycopy(_buf, _pos, b, off, n);
+            _pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            _in.close();
+        }
+
+        /** Read and decompress the next block.
+         * @return false at the end of the stream.
+         */
+        private boolean fillBlock() throws IOException {
+            int raw;
+            try {
+                raw = _in.readInt();
+            } catch (EOFException excp) {
+                return false;
+            }
+            int comp = _in.readInt();
+            if (raw <= 0 || raw > LZ_BLOCK || comp < 0 || comp > LZ_BLOCK) {
+                throw new IOException("corrupt compressed object");
+            }
+            _pos = 0;
+            _len = raw;
+            if (comp == 0) {
+                _in.readFully(_buf, 0, raw);
+                return true;
+            }
+            _in.readFully(_scratch, 0, comp);
+            int ip = 0, op = 0;
+            while (ip < comp) {
+                int token = _scratch[ip++] & 0xff;
+                int lits = token >>> 4;
+                if (lits == 15) {
+                    int b;
+                    do {
+                        b = _scratch[ip++] & 0xff;
+                        lits += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(_scratch, ip, _buf, op, lits);
+                ip += lits;
+                op += lits;
+                if (ip >= comp) {
+                    break;
+                }
+                int offset = (_scratch[ip] & 0xff)
+                    | ((_scratch[ip + 1] & 0xff) << 8);
+                ip += 2;
+                int mlen = token & 0xf;
+                if (mlen == 15) {
+                    int b;
+                    do {
+                        b = _scratch[ip++] & 0xff;
+                        mlen += b;
+                    } while (b == 255);
+                }
+                mlen += MIN_MATCH;
+                for (int i = 0; i < mlen; i += 1, op += 1) {
+                    _buf[op] = _buf[op - offset];
+                }
+            }
+            if (op != raw) {
+                throw new IOException("corrupt compressed object");
+            }
+            return true;
+        }
+
+        /** Underlying stream. */
+        private final DataInputStream _in;
+        /** The current decompressed block. */
+        private final byte[] _buf = new byte[LZ_BLOCK];
+        /** Number of valid bytes in _buf. */
+        private int _len;
+        /** Position of the next byte to read in _buf. */
+        private int _pos;
+        /** Compressed input of one block. */
+        private final byte[] _scratch = new byte[LZ_BLOCK];
+    }
+
+    /** Return the four bytes of B at POS as a big-endian int. */
+    private static int readInt(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16)
+            | ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+    }
+}
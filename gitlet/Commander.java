@@ -1,10 +1,26 @@
 package gitlet;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /** A central command room to facilitate Gitlet commands.
@@ -17,19 +33,16 @@ public class Commander {
     static final File GITLET = Utils.join(CWD, ".gitlet");
     /** Location of Object directory. */
     static final File OBJECT = Utils.join(GITLET, "Object");
-    /** Location of the StagingArea file (In git it's called INDEX). */
-    static final File STAGE = Utils.join(GITLET, "StagingArea");
-    /** Location of the Unstaged Area. */
-    static final File UNSTAGE = Utils.join(GITLET, "UnstagedArea");
+    /** Result of add for a file that is to be left out of the index. */
+    private static final String UNCHANGED = "";
 
 
     /** Initialize a commander object. Save operands in _operand
      * @param args The command line arguments.
      * */
     public Commander(String[] args) {
-        if (args == null) {
-            System.out.println("Please enter a command.");
-            System.exit(0);
+        if (args == null || args.length == 0) {
+            throw new GitletException("Please enter a command.");
         }
         _command = args[0];
         if (args.length > 1) {
@@ -42,63 +55,138 @@ public class Commander {
     /** Handle init command. */
     public void init() throws IOException {
         if (GITLET.exists()) {
-            System.out.println("A Gitlet version-control system "
+            throw new GitletException("A Gitlet version-control system "
                     + "already exists in the current directory.");
-            System.exit(0);
         }
         GITLET.mkdir();
-        STAGE.createNewFile();
-        UNSTAGE.createNewFile();
-        StagingArea.persistence();
         new Commit("initial commit", null);
     }
 
-    /** Handle the add command. Store the file location; Track it's content */
+    /** Handle the add command. Store the file location; Track it's content.
+     * Operands may be files, directories (everything under them is added)
+     * or glob patterns such as *.txt or src/**.java, matched against
+     * paths relative to the working directory. All files are hashed and
+     * saved in parallel, and the index is written once at the end. With
+     * --stats, also print how many files were added and how fast. */
     public void add() throws Exception {
         if (!GITLET.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
         }
+        boolean stats = _operands.remove("--stats");
         if (_operands.size() == 0) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
-        }
-        for (String s : _operands) {
-            File targetFile = Utils.join(CWD, s);
-            if (!targetFile.exists()) {
-                System.out.printf("File does not exist.");
-                System.exit(0);
+            throw new GitletException("Incorrect operands.");
+        }
+        long start = System.nanoTime();
+        TreeSet<String> paths = expandPaths(_operands);
+        Map<String, String> tracked = paths.size() > 1
+            ? Branch.getCurrentCommit().getContent() : null;
+        Commit head = tracked == null ? Branch.getCurrentCommit() : null;
+        Map<String, String> staged = StagingArea.getStagedFile();
+        Map<String, String> removed = StagingArea.getUnStaged();
+        ConcurrentHashMap<String, String> results = new ConcurrentHashMap<>();
+        AtomicInteger saved = new AtomicInteger();
+        ForkJoinPool.commonPool().submit(() -> paths.parallelStream()
+            .forEach(p -> {
+                if (removed.containsKey(p)) {
+                    results.put(p, UNCHANGED);
+                    return;
+                }
+                String sha = StatCache.hash(p);
+                String committed = tracked != null ? tracked.get(p)
+                    : head.getBlob(p);
+                if (sha.equals(committed)) {
+                    results.put(p, UNCHANGED);
+                } else if (sha.equals(staged.get(p))) {
+                    results.put(p, sha);
+                } else {
+                    try {
+                        results.put(p, new Blob(p).save());
+                    } catch (IOException excp) {
+                        throw new IllegalArgumentException(excp.getMessage());
+                    }
+                    saved.incrementAndGet();
+                }
+            })).join();
+        for (Map.Entry<String, String> e : new TreeMap<>(results).entrySet()) {
+            if (e.getValue().equals(UNCHANGED)) {
+                StagingArea.drop(e.getKey());
+            } else {
+                StagingArea.stage(e.getKey(), e.getValue());
             }
-            if (StagingArea.getUnStaged().keySet().contains(s)) {
-                StagingArea.getUnStaged().remove(targetFile.getName());
-                StagingArea.persistence();
+        }
+        if (stats) {
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Added %d files (%d saved) in %.3f s,"
+                              + " %.0f files/sec%n", paths.size(),
+                              saved.get(), seconds,
+                              paths.size() / seconds);
+        }
+    }
+
+    /** Get the working files named by OPERANDS of add: files, directories
+     * or glob patterns. Exits with an error if one names nothing.
+     * @param operands The operands.
+     * @return sorted paths relative to the working directory.
+     */
+    private static TreeSet<String> expandPaths(List<String> operands) {
+        TreeSet<String> result = new TreeSet<>();
+        Set<String> all = null;
+        for (String s : operands) {
+            File f = Utils.join(CWD, s);
+            if (f.isFile()) {
+                result.add(s);
                 continue;
             }
-            if (StagingArea.checkUnchangedContent(targetFile)){
-                continue;
+            boolean glob = s.matches(".*[*?\\[{].*");
+            if (!glob && !f.isDirectory()) {
+                throw new GitletException("File does not exist.");
+            }
+            if (all == null) {
+                all = WorkingTree.scan(p -> false).keySet();
+            }
+            int before = result.size();
+            if (glob) {
+                PathMatcher m =
+                    FileSystems.getDefault().getPathMatcher("glob:" + s);
+                for (String p : all) {
+                    if (m.matches(Paths.get(p))) {
+                        result.add(p);
+                    }
+                }
+            } else {
+                String dir = f.toPath().normalize()
+                    .equals(CWD.toPath().normalize()) ? ""
+                    : CWD.toPath().relativize(f.toPath().normalize())
+                    + "/";
+                for (String p : all) {
+                    if (p.startsWith(dir)) {
+                        result.add(p);
+                    }
+                }
+            }
+            if (result.size() == before && glob) {
+                throw new GitletException("File does not exist.");
             }
-            StagingArea.saveFile(s);
         }
+        return result;
     }
 
     /** Handle the commit command. */
     public void makeCommit() throws IOException {
         if (!GITLET.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
         }
         if (_operands.size() > 1) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw new GitletException("Incorrect operands.");
         }
         if (_operands.size() == 0
             || _operands.get(0).equals("")) {
-            System.out.println("Please enter a commit message");
-            System.exit(0);
+            throw new GitletException("Please enter a commit message");
         }
         if (!StagingArea.hasStagedFile() && StagingArea.getUnStaged().isEmpty()) {
-            System.out.println("No changes added to the commit.");
-            System.exit(0);
+            throw new GitletException("No changes added to the commit.");
         }
         String message = _operands.get(0);
         new Commit(message, Branch.getHeadID());
@@ -116,43 +204,39 @@ public class Commander {
      */
     public void rm() throws IOException {
         if (!GITLET.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
         }
         if (_operands.size() != 1) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw new GitletException("Incorrect operands.");
         }
         String filename = _operands.get(0);
         File targetFile = Utils.join(CWD, filename);
         Commit cCommit = Branch.getCurrentCommit();
-        if (StagingArea.getStagedFile().keySet().contains(filename)) {
-            StagingArea.getStagedFile().remove(filename);
-            StagingArea.persistence();
+        if (StagingArea.getStagedFile().containsKey(filename)) {
+            StagingArea.drop(filename);
             return;
-        } else if (cCommit.getContent().keySet().contains(filename)) {
-            String blobPath = cCommit.getContent().get(filename);
+        } else if (cCommit.getBlob(filename) != null) {
+            String blobPath = cCommit.getBlob(filename);
             StagingArea.unstage(filename, blobPath);
             targetFile.delete();
         } else {
-            System.out.println("No reason to remove the file.");
-            System.exit(0);
+            throw new GitletException("No reason to remove the file.");
         }
     }
     /** Make a new branch but do NOT point Head to it yet. */
     public void branch() {
         if (!GITLET.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
         }
         if (_operands.size() != 1) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw new GitletException("Incorrect operands.");
         }
         String branchName = _operands.get(0);
         if (Branch.getAllBranches().keySet().contains(branchName)) {
-            System.out.println("A branch with that name already exists.");
-            System.exit(0);
+            throw new GitletException(
+                "A branch with that name already exists.");
         }
         String shaName = Branch.getAllBranches().get(Branch.getHead());
         Branch.makeBranch(branchName, shaName);
@@ -165,22 +249,20 @@ public class Commander {
      */
     public void rmBranch() {
         if (!GITLET.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
         }
         if (_operands.size() != 1) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw new GitletException("Incorrect operands.");
         }
         String branchName = _operands.get(0);
         if (!Branch.getAllBranches().keySet().contains(branchName)) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+            throw new GitletException(
+                "A branch with that name does not exist.");
         }
         String cBranch = Branch.getHead();
         if (branchName.equals(cBranch)) {
-            System.out.println("Cannot remove the current branch.");
-            System.exit(0);
+            throw new GitletException("Cannot remove the current branch.");
         }
         Branch.removeBranch(branchName);
     }
@@ -188,72 +270,37 @@ public class Commander {
     /** Handle the checkout command. */
     public void checkout() {
         if (!GITLET.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
         }
         if (_operands.size() == 0 || _operands.size() > 3
             || (_operands.size() == 2 && !_operands.get(0).equals("--"))
             || (_operands.size() == 3 && !_operands.get(1).equals("--")) ){
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw new GitletException("Incorrect operands.");
         }
         if (_operands.size() == 1) {
             String branchName = _operands.get(0);
 
             if (!Branch.getAllBranches().containsKey(branchName)) {
-                System.out.println("No such branch exists");
-                System.exit(0);
+                throw new GitletException("No such branch exists");
             }
             if (branchName.equals(Branch.getHead())) {
-                System.out.println("No need to checkout the current branch.");
-                System.exit(0);
+                throw new GitletException(
+                    "No need to checkout the current branch.");
             }
             String bCommitSha = Branch.getAllBranches().get(branchName);
-            Commit bCommit = Commit.getCommitObject(bCommitSha);
-
-            File[] allFiles = CWD.listFiles();
-            for (File f : allFiles) {
-                if (f.getName().equals(".gitlet")) {continue;}
-                String fileName = f.getName();
-                String fileContent = Utils.readContentsAsString(f);
-                Commit cCommit = Branch.getCurrentCommit();
-                if (!bCommit.getContent().containsKey(fileName)) {
-                    if (!cCommit.getContent().containsKey(fileName)) {
-                        System.out.println("There is an untracked file "
-                                + "in the way; delete it, or add "
-                                + "and commit it first.");
-                        System.exit(0);
-                    } else {
-                        cCommit.rmFileCWD(fileName);
-                    }
-                } else {
-                    String bCommitFileSha = bCommit.getContent().get(fileName);
-                    String bCommitFileContent =
-                            StagingArea.getContentFromSha(bCommitFileSha);
-
-                    if (!bCommitFileContent.equals(fileContent)
-                            && !cCommit.getContent().containsKey(fileName)) {
-                        System.out.println("There is an untracked file "
-                                + "in the way; delete it, or add "
-                                + "and commit it first.");
-                        System.exit(0);
-                    } else {
-                        cCommit.rmFileCWD(fileName);
-                    }
-                }
-            }
-
-            bCommit.writeToCWD();
+            switchCommit(Branch.getCurrentCommit(),
+                         Commit.getCommitObject(bCommitSha));
             Branch.moveHead(branchName);
         }
         if (_operands.size() == 2) {
             String fileName = _operands.get(1);
             Commit tCommit = Branch.getCurrentCommit();
-            if (!tCommit.getContent().containsKey(fileName)) {
-                System.out.println("File does not exist in that commit.");
-                System.exit(0);
+            if (tCommit.getBlob(fileName) == null) {
+                throw new GitletException(
+                    "File does not exist in that commit.");
             }
-            tCommit.writeToCWD();
+            tCommit.writeFileToCWD(fileName);
         }
         if (_operands.size() == 3) {
             handleThree();
@@ -265,59 +312,62 @@ public class Commander {
         String shortSha = _operands.get(0);
         String fileName = _operands.get(2);
         Commit targetCommit = Commit.getCommitObject(shortSha);
-        if (!targetCommit.getContent().containsKey(fileName)) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+        if (targetCommit.getBlob(fileName) == null) {
+            throw new GitletException("File does not exist in that commit.");
         }
-        String blobID = targetCommit.getContent().get(fileName);
         targetCommit.writeFileToCWD(fileName);
     }
 
     /** Starting at the current head commit, display information about each
     commit backwards along the commit tree until the initial commit, following
      the first parent commit links, ignoring any second parents found in merge
-     commits. */
+     commits. With operands -n N, stop after N commits. */
     public void log() {
         if (!GITLET.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
         }
-        if (_operands.size() > 0) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+        int limit = Integer.MAX_VALUE;
+        if (_operands.size() == 2 && _operands.get(0).equals("-n")
+            && _operands.get(1).matches("\\d+")) {
+            limit = Integer.parseInt(_operands.get(1));
+        } else if (_operands.size() > 0) {
+            throw new GitletException("Incorrect operands.");
         }
-        Commit currentCommit = Branch.getCurrentCommit();
-        byte[] serializedCommit = Utils.serialize(currentCommit);
-        String shaID = Utils.sha1(serializedCommit);
-        Commit.printAll(shaID, currentCommit);
+        Commit.printLog(Branch.getHeadID(), limit);
     }
 
     /** Prints out the ids of all commits that have the given commit message,
      * one per line. If there are multiple such commits, it prints the ids out
-     * on separate lines.
+     * on separate lines. With --prefix or --contains before the message,
+     * finds the commits whose message starts with or contains it instead.
      */
     public void find() {
         if (!GITLET.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
-        }
-        if (_operands.size() > 1) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
-        }
-        String message =  _operands.get(0);
-        Commit.findMessage(message);
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
+        }
+        MessageIndex.Mode mode = MessageIndex.Mode.EXACT;
+        if (_operands.size() == 2 && _operands.get(0).equals("--prefix")) {
+            mode = MessageIndex.Mode.PREFIX;
+        } else if (_operands.size() == 2
+                   && _operands.get(0).equals("--contains")) {
+            mode = MessageIndex.Mode.CONTAINS;
+        } else if (_operands.size() != 1) {
+            throw new GitletException("Incorrect operands.");
+        }
+        String message = _operands.get(_operands.size() - 1);
+        Commit.findMessage(message, mode);
     }
 
     /** Show current status. */
     public void status() throws IOException {
         if (!GITLET.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
         }
         if (_operands.size() > 0) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
+            throw new GitletException("Incorrect operands.");
         }
         String cBranch = Branch.getHead();
         System.out.println("=== Branches ===");
@@ -325,40 +375,72 @@ public class Commander {
         Arrays.sort(sortedBranches);
         for (Object s : sortedBranches) {
             if (s.equals(cBranch)) {
-                System.out.printf("*%s\n", cBranch);
+                System.out.println("*" + cBranch);
             } else {
                 System.out.println(s);
             }
         }
         System.out.println();
         System.out.println("=== Staged Files ===");
-        if (STAGE.exists()) {
-            Object[] sortedStagedFiles =
-                    StagingArea.getStagedFile().keySet().toArray();
-            Arrays.sort(sortedStagedFiles);
-            for (Object s : sortedStagedFiles) {
-                System.out.println(s);
-            }
+        for (String s : StagingArea.getStagedFile().keySet()) {
+            System.out.println(s);
         }
         System.out.println();
         System.out.println("=== Removed Files ===");
-        if (UNSTAGE.exists()) {
-            Object[] sortedUnStagedFiles =
-                    StagingArea.getUnStaged().keySet().toArray();
-            for (Object s : sortedUnStagedFiles) {
-                File tFile = Utils.join(CWD, (String) s);
-                if (!tFile.exists()) {
-                    System.out.println(s);
-                }
+        for (String s : StagingArea.getUnStaged().keySet()) {
+            File tFile = Utils.join(CWD, s);
+            if (!tFile.exists()) {
+                System.out.println(s);
             }
         }
         System.out.println();
-        System.out.println("=== Modifications Not Staged For Commit ===");
-        //FIXME
+        printWorkingChanges();
+    }
 
+    /** Print the "Modifications Not Staged For Commit" and "Untracked
+     * Files" sections of status. The working directory is scanned in
+     * parallel, and only files that are tracked or staged get hashed.
+     */
+    private void printWorkingChanges() throws IOException {
+        Map<String, String> tracked = Branch.getCurrentCommit().getContent();
+        Map<String, String> staged = StagingArea.getStagedFile();
+        Map<String, String> removed = StagingArea.getUnStaged();
+        TreeMap<String, String> working = WorkingTree.scan(
+            p -> tracked.containsKey(p) || staged.containsKey(p));
+        TreeMap<String, String> modified = new TreeMap<>();
+        for (Map.Entry<String, String> e : staged.entrySet()) {
+            String sha = working.get(e.getKey());
+            if (sha == null) {
+                modified.put(e.getKey(), "deleted");
+            } else if (!sha.equals(e.getValue())) {
+                modified.put(e.getKey(), "modified");
+            }
+        }
+        for (Map.Entry<String, String> e : tracked.entrySet()) {
+            String name = e.getKey();
+            if (staged.containsKey(name) || removed.containsKey(name)) {
+                continue;
+            }
+            String sha = working.get(name);
+            if (sha == null) {
+                modified.put(name, "deleted");
+            } else if (!sha.equals(e.getValue())) {
+                modified.put(name, "modified");
+            }
+        }
+        System.out.println("=== Modifications Not Staged For Commit ===");
+        for (Map.Entry<String, String> e : modified.entrySet()) {
+            System.out.printf("%s (%s)\n", e.getKey(), e.getValue());
+        }
         System.out.println();
         System.out.println("=== Untracked Files ===");
-        //FIXME
+        for (String name : working.keySet()) {
+            if (!staged.containsKey(name)
+                && (!tracked.containsKey(name) || removed.containsKey(name))) {
+                System.out.println(name);
+            }
+        }
+        StatCache.save();
     }
 
     /** Checks out all the files tracked by the given commit.
@@ -367,35 +449,280 @@ public class Commander {
      */
     public void reset() {
         if (!GITLET.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
         }
         if (_operands.size() > 1) {
-            System.out.println("Incorrect operands.");
-            System.exit(0);
-        }
-        String targetId = _operands.get(0);
-        Commit tarCommit = Commit.getCommitObject(targetId);
-        Commit curCommit = Branch.getCurrentCommit();
-        for (File file : CWD.listFiles()) {
-            if (!curCommit.getContent().containsKey(file)
-                    && tarCommit.getContent().containsKey(file)) {
-                System.out.println("There is an untracked file in the way; "
-                        + "delete it, or add and commit it first.");
-                System.exit(0);
-            }
+            throw new GitletException("Incorrect operands.");
+        }
+        String targetId = Commit.resolveId(_operands.get(0));
+        switchCommit(Branch.getCurrentCommit(),
+                     Commit.getCommitObject(targetId));
+        String curBranch = Branch.getHead();
+        Branch.advanceBranch(curBranch, targetId);
+        StagingArea.clear();
+    }
+
+    /** Merge the given branch into the current one. Both are compared
+     * with their split point, found by CommitGraph.mergeBase, through
+     * the diffs of their trees: a file changed only in the given branch
+     * is taken from it, and a file changed differently in both gets
+     * conflict markers around both versions. The result is committed with
+     * the given branch as second parent.
+     */
+    public void merge() throws IOException {
+        if (!GITLET.exists()) {
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
+        }
+        if (_operands.size() != 1) {
+            throw new GitletException("Incorrect operands.");
+        }
+        String branchName = _operands.get(0);
+        if (StagingArea.hasStagedFile()
+            || !StagingArea.getUnStaged().isEmpty()) {
+            throw new GitletException("You have uncommitted changes.");
+        }
+        if (!Branch.getAllBranches().containsKey(branchName)) {
+            throw new GitletException(
+                "A branch with that name does not exist.");
+        }
+        if (branchName.equals(Branch.getHead())) {
+            throw new GitletException("Cannot merge a branch with itself.");
+        }
+        String currentId = Branch.getHeadID();
+        String givenId = Branch.getAllBranches().get(branchName);
+        Commit current = Branch.getCurrentCommit();
+        Commit given = Commit.getCommitObject(givenId);
+        String splitId = CommitGraph.mergeBase(currentId, givenId);
+        if (givenId.equals(splitId)) {
+            throw new GitletException("Given branch is an ancestor of the "
+                                      + "current branch.");
+        }
+        if (currentId.equals(splitId)) {
+            switchCommit(current, given);
+            Branch.advanceBranch(Branch.getHead(), givenId);
+            System.out.println("Current branch fast-forwarded.");
+            return;
         }
-        for (String s : curCommit.getContent().keySet()) {
-            if (!tarCommit.getContent().containsKey(s)) {
-                Commit.rmFileCWD(s);
+        String splitTree = splitId == null ? null
+            : Commit.getCommitObject(splitId).getTree();
+        TreeMap<String, String[]> ours = new TreeMap<>();
+        TreeMap<String, String[]> theirs = new TreeMap<>();
+        Tree.diff(splitTree, current.getTree(), "", ours);
+        Tree.diff(splitTree, given.getTree(), "", theirs);
+        TreeMap<String, String> taken = new TreeMap<>();
+        TreeMap<String, String> conflicts = new TreeMap<>();
+        for (Map.Entry<String, String[]> e : theirs.entrySet()) {
+            String path = e.getKey();
+            String[] ourBlobs = ours.get(path);
+            String ourBlob = ourBlobs == null ? e.getValue()[0]
+                : ourBlobs[1];
+            String theirBlob = e.getValue()[1];
+            if (ourBlobs == null) {
+                taken.put(path, theirBlob);
+            } else if (ourBlob == null ? theirBlob == null
+                       : ourBlob.equals(theirBlob)) {
+                continue;
+            } else {
+                conflicts.put(path, ourBlob);
+            }
+            if (ourBlob == null && Utils.join(CWD, path).isFile()) {
+                throw new GitletException("There is an untracked file in "
+                        + "the way; delete it, or add and commit it first.");
             }
         }
-        for (String s : tarCommit.getContent().keySet()) {
-            tarCommit.writeFileToCWD(s);
+        if (taken.isEmpty() && conflicts.isEmpty()) {
+            throw new GitletException("No changes added to the commit.");
         }
-        String curBranch = Branch.getHead();
-        Branch.advanceBranch(curBranch, targetId);
+        for (Map.Entry<String, String> e : conflicts.entrySet()) {
+            taken.put(e.getKey(), Blob.save(conflict(
+                e.getValue(), theirs.get(e.getKey())[1])));
+        }
+        WorkingTree.apply(taken);
+        for (Map.Entry<String, String> e : taken.entrySet()) {
+            if (e.getValue() == null) {
+                StagingArea.unstage(e.getKey(), current.getBlob(e.getKey()));
+            } else {
+                StagingArea.stage(e.getKey(), e.getValue());
+            }
+        }
+        new Commit("Merged " + branchName + " into " + Branch.getHead()
+                   + ".", currentId, givenId);
         StagingArea.clear();
+        if (!conflicts.isEmpty()) {
+            System.out.println("Encountered a merge conflict.");
+        }
+    }
+
+    /** Get the content of a file in conflict: the blob OURS of the
+     * current branch and the blob THEIRS of the given one (either null if
+     * the file was deleted there) between conflict markers. */
+    private static byte[] conflict(String ours, String theirs)
+        throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes("<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8));
+        if (ours != null) {
+            try (InputStream in = StagingArea.getContentFromSha(ours)) {
+                in.transferTo(out);
+            }
+        }
+        out.writeBytes("=======\n".getBytes(StandardCharsets.UTF_8));
+        if (theirs != null) {
+            try (InputStream in = StagingArea.getContentFromSha(theirs)) {
+                in.transferTo(out);
+            }
+        }
+        out.writeBytes(">>>>>>>\n".getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    /** Print the line differences between two versions of the tracked
+     * files: with no commit operand, from the staging area (the head
+     * commit with the staged changes) to the working directory; with one,
+     * from that commit to the working directory; with two, from the first
+     * commit to the second. After "--", only the file named last is
+     * compared. Files whose blobs are the same are skipped unread.
+     */
+    public void diff() throws IOException {
+        if (!GITLET.exists()) {
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
+        }
+        List<String> commits = _operands;
+        String file = null;
+        int dashes = _operands.indexOf("--");
+        if (dashes >= 0) {
+            if (dashes != _operands.size() - 2) {
+                throw new GitletException("Incorrect operands.");
+            }
+            file = _operands.get(dashes + 1);
+            commits = _operands.subList(0, dashes);
+        }
+        if (commits.size() > 2) {
+            throw new GitletException("Incorrect operands.");
+        }
+        TreeMap<String, String[]> changes = new TreeMap<>();
+        boolean working = commits.size() < 2;
+        if (!working) {
+            Commit from = Commit.getCommitObject(commits.get(0));
+            Commit to = Commit.getCommitObject(commits.get(1));
+            if (file == null) {
+                Tree.diff(from.getTree(), to.getTree(), "", changes);
+            } else {
+                changes.put(file, new String[] {from.getBlob(file),
+                                                to.getBlob(file)});
+            }
+        } else {
+            Map<String, String> from;
+            if (commits.isEmpty()) {
+                from = new TreeMap<>(Branch.getCurrentCommit().getContent());
+                from.putAll(StagingArea.getStagedFile());
+                from.keySet().removeAll(StagingArea.getUnStaged().keySet());
+            } else {
+                from = Commit.getCommitObject(commits.get(0)).getContent();
+            }
+            for (Map.Entry<String, String> e : from.entrySet()) {
+                String path = e.getKey();
+                if (file == null || file.equals(path)) {
+                    changes.put(path, new String[] {e.getValue(),
+                        Utils.join(CWD, path).isFile()
+                        ? StatCache.hash(path) : null});
+                }
+            }
+        }
+        PrintWriter out = Commit.logWriter();
+        for (Map.Entry<String, String[]> e : changes.entrySet()) {
+            String[] blobs = e.getValue();
+            if (blobs[0] == null ? blobs[1] == null
+                : blobs[0].equals(blobs[1])) {
+                continue;
+            }
+            try (InputStream old = blobStream(blobs[0]);
+                 InputStream now = blobs[1] == null || !working
+                     ? blobStream(blobs[1])
+                     : new FileInputStream(Utils.join(CWD, e.getKey()))) {
+                Diff.print(e.getKey(), old, now, out);
+            }
+        }
+        out.flush();
+    }
+
+    /** Get a stream of the content of the blob named SHA, or null if SHA
+     * is null. */
+    private static InputStream blobStream(String sha) throws IOException {
+        return sha == null ? null : StagingArea.getContentFromSha(sha);
+    }
+
+    /** Change the working directory from the files of commit FROM to
+     * those of commit TO. The files whose blob differs between the two
+     * trees are written or deleted, and so is every file of TO that is
+     * missing from the working directory or was changed there (checked
+     * through the StatCache, so unchanged files aren't read). Fails
+     * before changing anything if a file that is untracked in FROM would
+     * be overwritten, or if any file can't be written.
+     * @param from The commit checked out now.
+     * @param to The commit checked out next.
+     */
+    private static void switchCommit(Commit from, Commit to) {
+        TreeMap<String, String[]> changes = new TreeMap<>();
+        Tree.diff(from.getTree(), to.getTree(), "", changes);
+        for (Map.Entry<String, String[]> e : changes.entrySet()) {
+            String[] blobs = e.getValue();
+            File f = Utils.join(CWD, e.getKey());
+            if (blobs[0] == null && f.isFile()
+                && !blobs[1].equals(StatCache.hash(e.getKey()))) {
+                throw new GitletException("There is an untracked file in "
+                        + "the way; delete it, or add and commit it first.");
+            }
+        }
+        HashMap<String, String> blobs = new HashMap<>();
+        for (Map.Entry<String, String[]> e : changes.entrySet()) {
+            blobs.put(e.getKey(), e.getValue()[1]);
+        }
+        for (Map.Entry<String, String> e : to.getContent().entrySet()) {
+            String name = e.getKey();
+            if (!blobs.containsKey(name)
+                && (!Utils.join(CWD, name).isFile()
+                    || !e.getValue().equals(StatCache.hash(name)))) {
+                blobs.put(name, e.getValue());
+            }
+        }
+        WorkingTree.apply(blobs);
+    }
+
+    /** Move all loose objects into the pack, so that they are no
+     * longer one file each.
+     */
+    public void pack() throws IOException {
+        if (!GITLET.exists()) {
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
+        }
+        if (_operands.size() > 0) {
+            throw new GitletException("Incorrect operands.");
+        }
+        Pack.packLoose();
+    }
+
+    /** Serve commands from Clients over a local socket, keeping the
+     * repository warm between them (see Daemon). With the operand stop,
+     * stop the daemon that is running instead.
+     */
+    public void daemon() throws IOException {
+        if (!GITLET.exists()) {
+            throw new GitletException(
+                "Not in an initialized Gitlet directory.");
+        }
+        if (_operands.size() == 1 && _operands.get(0).equals("stop")) {
+            if (!Daemon.stop()) {
+                throw new GitletException("No daemon is running.");
+            }
+        } else if (_operands.isEmpty()) {
+            Daemon.serve();
+        } else {
+            throw new GitletException("Incorrect operands.");
+        }
     }
 
     /** Command line commands. */
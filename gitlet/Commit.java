@@ -1,19 +1,54 @@
 package gitlet;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
 
 
 /** Represent a commit object.
+ *
+ * A commit is stored, and named by the sha1 of, its encoding: MAGIC, a
+ * version byte, the 20 byte id of its tree, a count byte and the 20 byte
+ * ids of its parents, its timestamp as a long in milliseconds, and the
+ * length of its message as an int followed by the message in UTF-8. All
+ * numbers are big-endian, so the same commit always has the same id.
+ * Commits written before this encoding are Java-serialized, and are still
+ * read that way.
  * @author Heming Wu
  * */
 public class Commit implements Serializable {
 
+    /** The id the class had before commits had trees or second parents,
+     * so commits serialized then still load. The fields added since then
+     * are null in them, as a missing field reads, or transient. */
+    private static final long serialVersionUID = -5191973939771172026L;
+
     /** Current working directory. */
     static final File CWD = new File(System.getProperty("user.dir"));
     /** Location of .gitlet directory. Assume it already exists.*/
@@ -22,20 +57,43 @@ public class Commit implements Serializable {
     static final File COMMIT = Utils.join(GITLET, "Commit");
     /** Location of Object directory, containing blobs. */
     static final File OBJECT = Utils.join(GITLET, "Object");
+    /** Number of commits global-log and find load at a time. */
+    static final int BATCH = 1024;
+    /** First bytes of an encoded commit. A serialized commit starts with
+     * 0xaced instead. */
+    static final byte[] MAGIC = {'G', 'C', 'M', 'T'};
+    /** Version of the encoding. */
+    static final byte VERSION = 1;
+    /** Largest length of an encoding, less the message. */
+    private static final int HEADER = 64;
 
 
     /** Construct a commit, which consist of a log message, timestamp,
-     * a mapping of file names to blob references, a parent reference,
-     * and (for merges) a second parent reference.
+     * the tree of its files, a parent reference, and (for merges) a
+     * second parent reference.
      * @param message is the commit message passed in.
      * @param parent is the sha1 name of parent commit.
      */
     public Commit(String message, String parent) throws IOException {
+        this(message, parent, null);
+    }
+
+    /** Construct a merge commit of the staged changes, as for the other
+     * constructor, with a second parent.
+     * @param message is the commit message passed in.
+     * @param parent is the sha1 name of parent commit.
+     * @param secondParent is the sha1 name of the commit merged in, or
+     * null.
+     */
+    public Commit(String message, String parent, String secondParent)
+        throws IOException {
         COMMIT.mkdir();
         _message = message;
         _parent = parent;
+        _secondParent = secondParent;
         if (parent == null) {
             _timestamp = new Date(0);
+            _tree = Tree.update(null, Collections.emptyMap());
             saveCommit();
             Branch.makeBranch("master", _sha);
             Branch.moveHead("master");
@@ -43,87 +101,56 @@ public class Commit implements Serializable {
         } else {
             _timestamp = new Date();
             Commit pCommit = getCommitObject(parent);
-            copyContent(pCommit);
-            loadStage();
-            rmUnstaged();
+            _tree = Tree.update(pCommit.getTree(), stagedChanges());
             saveCommit();
             String currentBranch = Branch.getHead();
             Branch.advanceBranch(currentBranch, _sha);
         }
     }
 
-    /** Prints out the ids of all commits that have the given MESSAGE.
+    /** A commit whose fields are filled in by decode. */
+    private Commit() {
+    }
+
+    /** Prints out the ids of all commits whose message matches MESSAGE
+     * the MODE way, using the MessageIndex.
      * @param message Message that I want to find.
+     * @param mode How the message has to match.
      */
-    public static void findMessage(String message) {
-        boolean indicator = false;
-        for (File cSubDir : COMMIT.listFiles()) {
-            for (File cFile : cSubDir.listFiles()) {
-                String shaName = cFile.getName();
-                Commit thisCommit = getCommitObject(shaName);
-                if (thisCommit.getMessage().equals(message)) {
-                    System.out.println(shaName);
-                    indicator = true;
-                }
+    public static void findMessage(String message, MessageIndex.Mode mode) {
+        PrintWriter out = logWriter();
+        Collection<String> ids = MessageIndex.find(message, mode);
+        int found;
+        if (ids != null) {
+            for (String id : ids) {
+                out.println(id);
             }
+            found = ids.size();
+        } else {
+            found = scanCommits(ForkJoinPool.commonPool(), (id, c) ->
+                MessageIndex.matches(c.getMessage(), message, mode)
+                ? id + "\n" : null, out);
         }
-        if (!indicator) {
-            System.out.println("Found no commit with that message.");
-            System.exit(0);
+        out.flush();
+        if (found == 0) {
+            throw new GitletException("Found no commit with that message.");
         }
-
     }
 
-    /** Remove files that are to be unstaged from _content. */
-    private void rmUnstaged() {
+    /** Get the changes in the staging area: a map of each staged file to
+     * its blob, and of each file to be unstaged to null. */
+    private static HashMap<String, String> stagedChanges() {
+        HashMap<String, String> result = new HashMap<>(
+            StagingArea.getStagedFile());
         for (String s : StagingArea.getUnStaged().keySet()) {
-            _content.remove(s);
-        }
-    }
-
-    /** Handle initial commit. */
-    private void makeInitial() {
-        return;
-    }
-
-
-    /** Copy all tracked files from the commit c.
-     * @param c the commit I'm copying from.
-     * */
-    private void copyContent(Commit c) {
-        if (c._content != null) {
-            for (Map.Entry<String, String> s
-                    : c._content.entrySet()) {
-                _content.put(s.getKey(), s.getValue());
-            }
-        }
-    }
-
-    /** Update content with files in The staging area.
-     *  If the staging area has a file that's the updated version
-     *  of a file in previous commit, remove older version from
-     *  _content and add the newer version.
-     * */
-    private void loadStage() throws IOException {
-        for (Map.Entry<String, String> s
-                : StagingArea.getStagedFile().entrySet()) {
-            String fileOriName = s.getKey();
-            String fileShaName = s.getValue();
-            if (_content.keySet().contains(fileOriName)) {
-                _content.remove(fileOriName);
-            }
-            _content.put(fileOriName, fileShaName);
+            result.put(s, null);
         }
+        return result;
     }
 
     /** Write content in this commit to the working directory. */
     public void writeToCWD() {
-        for (Map.Entry<String, String> each
-                : _content.entrySet()) {
-            String fileName = each.getKey();
-            String fromBlob = each.getValue();
-            writeFileToCWD(fileName);
-        }
+        WorkingTree.apply(getContent());
     }
 
     /** Write the content of the file named FILENAME (which assumed to be
@@ -132,9 +159,8 @@ public class Commit implements Serializable {
      */
     public void writeFileToCWD(String filename) {
         File toFile = Utils.join(CWD, filename);
-        String blobID = _content.get(filename);
-        String fileContent = StagingArea.getContentFromSha(blobID);
-        Utils.writeContents(toFile, fileContent);
+        String blobID = getBlob(filename);
+        StagingArea.writeContentFromSha(blobID, toFile);
     }
 
     /** Remove file named FILENAME from the working directory. */
@@ -145,102 +171,286 @@ public class Commit implements Serializable {
 
 
 
-    /** Save serialized Commit object in `Commit` folder and
+    /** Save encoded Commit object in `Commit` folder and
      * get it's sha1 name. Used the first two character as the name
      * of the Commit file's wrapping folder (for hashing purpose), then
      * save the Commit file with it's sha1 name as file's name.
+     * The file is compressed with the current Codec; the sha1 name is
+     * that of the uncompressed encoding.
      */
     private void saveCommit() throws IOException {
-        byte[] serializedCommit = Utils.serialize(this);
+        byte[] serializedCommit = encode();
         _sha = Utils.sha1(serializedCommit);
         String shortSha = _sha.substring(0, 2);
         File commitSubDir = Utils.join(COMMIT, shortSha);
         commitSubDir.mkdir();
         File newCommit = Utils.join(commitSubDir, _sha);
-        Utils.writeContents(newCommit, serializedCommit);
+        try (OutputStream out =
+                 Codec.current().wrap(new FileOutputStream(newCommit))) {
+            out.write(serializedCommit);
+        }
+        CommitGraph.add(_sha, this);
+        MessageIndex.add(_sha, _message);
+        ObjectIndex.add(_sha, Pack.COMMIT);
     }
 
-    /** Check if there's previous commit. Return true if there is.(Assume
-     * gitlet init command is run, so that there is an initial commit named
-     * "initial". */
-    static boolean existPreviousCommit() {
-        return COMMIT.listFiles().length != 1;
+    /** Get the sha1 names of all commits ever made, loose or packed.
+     * @return the names.
+     */
+    static List<String> allCommitIds() {
+        ArrayList<String> result = new ArrayList<>();
+        File[] subDirs = COMMIT.listFiles();
+        if (subDirs != null) {
+            for (File cSubDir : subDirs) {
+                for (File cFile : cSubDir.listFiles()) {
+                    result.add(cFile.getName());
+                }
+            }
+        }
+        result.addAll(Pack.ids(Pack.COMMIT));
+        return result;
     }
 
-    /** Get back commit from it's serialized FILE. *./
+    /** Get the sha1 names of all commits ever made, sorted, listing the
+     * fan-out directories in parallel on POOL.
+     * @param pool Where the directories are listed.
+     * @return the names.
+     */
+    static List<String> allCommitIds(ForkJoinPool pool) {
+        File[] subDirs = COMMIT.listFiles();
+        List<String> result = new ArrayList<>(Pack.ids(Pack.COMMIT));
+        if (subDirs != null) {
+            result.addAll(pool.submit(() -> Arrays.stream(subDirs).parallel()
+                .flatMap(d -> Arrays.stream(d.list()))
+                .collect(Collectors.toList())).join());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /** Load every commit on POOL, BATCH commits at a time, render each
+     * with RENDER, and print the results in order of commit id to OUT.
+     * So the output doesn't depend on the pool, and only one batch of
+     * commits is in memory at once.
+     * @param pool Where the commits are loaded and rendered.
+     * @param render Makes the text printed for a commit given its sha1
+     * name and the commit, or null to print nothing.
+     * @param out Where the text is printed.
+     * @return the number of commits something was printed for.
+     */
+    static int scanCommits(ForkJoinPool pool,
+                           BiFunction<String, Commit, String> render,
+                           PrintWriter out) {
+        List<String> ids = allCommitIds(pool);
+        int printed = 0;
+        for (int start = 0; start < ids.size(); start += BATCH) {
+            List<String> batch =
+                ids.subList(start, Math.min(start + BATCH, ids.size()));
+            List<String> texts = pool.submit(() -> batch.parallelStream()
+                .map(id -> render.apply(id, load(id)))
+                .collect(Collectors.toList())).join();
+            for (String text : texts) {
+                if (text != null) {
+                    out.print(text);
+                    printed += 1;
+                }
+            }
+        }
+        return printed;
+    }
+
+    /** Get the full sha1 name of the commit ID abbreviates, using the
+     * ObjectIndex. Exits with an error if no commit or more than one
+     * commit has an id starting with ID.
+     * @param id The sha1 ID of a commit, either short or long.
+     * @return its full sha1 ID.
+     */
+    static String resolveId(String id) {
+        if (id.length() == Utils.UID_LENGTH) {
+            return id;
+        }
+        List<String> ids = ObjectIndex.resolve(id, Pack.COMMIT);
+        if (ids.isEmpty()) {
+            throw new GitletException("No commit with that id exists");
+        } else if (ids.size() > 1) {
+            throw new GitletException("Ambiguous commit id " + id
+                                      + ": could be "
+                                      + String.join(", ", ids) + ".");
+        }
+        return ids.get(0);
+    }
+
+    /** Get back commit from it's serialized FILE, or from the pack
+     * if it's not a loose file, unless it's in ObjectCache.COMMITS.
      * @param sha1 Ths sha1 ID of the commit, either short or long.
      * @return the Commit object.
      */
     public static Commit getCommitObject(String sha1) {
+        sha1 = resolveId(sha1);
+        Commit result = ObjectCache.COMMITS.get(sha1);
+        if (result == null) {
+            result = load(sha1);
+            ObjectCache.COMMITS.put(sha1, result);
+        }
+        return result;
+    }
+
+    /** Read the commit named SHA1 from its file or the pack, without
+     * going through ObjectCache.COMMITS. Used by walks over every
+     * commit, which would only flush the cache.
+     * @param sha1 The full sha1 ID of the commit.
+     * @return the Commit object.
+     */
+    static Commit load(String sha1) {
         String shortSha1 = sha1.substring(0, 2);
         File folder = Utils.join(COMMIT, shortSha1);
         File target = Utils.join(folder, sha1);
-        if (!target.exists()) {
-            System.out.println("No commit with that id exists");
-            System.exit(0);
+        try {
+            InputStream in;
+            if (target.exists()) {
+                in = Codec.open(new FileInputStream(target));
+            } else {
+                in = Pack.open(sha1, Pack.COMMIT);
+            }
+            if (in == null) {
+                throw new GitletException("No commit with that id exists");
+            }
+            Commit result = decode(in);
+            result._sha = sha1;
+            return result;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        Commit result = Utils.readObject(target, Commit.class);
+    }
+
+    /** Get the encoding of this commit, which names it.
+     * @return the encoded bytes.
+     */
+    byte[] encode() {
+        byte[] message = _message.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+            HEADER + message.length);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.write(Utils.toBytes(getTree()));
+            out.writeByte(_parent == null ? 0
+                          : _secondParent == null ? 1 : 2);
+            if (_parent != null) {
+                out.write(Utils.toBytes(_parent));
+            }
+            if (_secondParent != null) {
+                out.write(Utils.toBytes(_secondParent));
+            }
+            out.writeLong(_timestamp.getTime());
+            out.writeInt(message.length);
+            out.write(message);
+        } catch (IOException excp) {
+            throw Utils.error("Internal error encoding commit.");
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Read a commit from IN, encoded or Java-serialized, and close IN.
+     * @param in The (uncompressed) bytes of a commit.
+     * @return the commit, without its sha1 name.
+     */
+    static Commit decode(InputStream in) throws IOException {
+        byte[] bytes;
+        try (in) {
+            bytes = in.readAllBytes();
+        }
+        if (bytes.length < MAGIC.length
+            || !Arrays.equals(bytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            return Utils.readObject(new ByteArrayInputStream(bytes),
+                                    Commit.class);
+        }
+        DataInputStream data = new DataInputStream(
+            new ByteArrayInputStream(bytes, MAGIC.length,
+                                     bytes.length - MAGIC.length));
+        if (data.readByte() != VERSION) {
+            throw Utils.error("Unknown commit version.");
+        }
+        Commit result = new Commit();
+        byte[] id = new byte[Utils.UID_LENGTH / 2];
+        data.readFully(id);
+        result._tree = Utils.toHex(id);
+        int parents = data.readUnsignedByte();
+        if (parents > 0) {
+            data.readFully(id);
+            result._parent = Utils.toHex(id);
+        }
+        if (parents > 1) {
+            data.readFully(id);
+            result._secondParent = Utils.toHex(id);
+        }
+        result._timestamp = new Date(data.readLong());
+        byte[] message = new byte[data.readInt()];
+        data.readFully(message);
+        result._message = new String(message, StandardCharsets.UTF_8);
         return result;
     }
 
-    /** Help print out all the commit dated back from Commit c.
-     * (Help with log command).
+    /** Print the commits dated back from the commit named SHAID,
+     * following first parents through the CommitGraph (help with log
+     * command). Walks iteratively and writes through one large buffer,
+     * so neither the stack nor the heap grows with the history.
      * @param shaID The shaID of current commit Head is associated with.
-     * @param c Interested commit. Usually should be the current commit.
+     * @param limit Largest number of commits to print.
      * */
-    static void printAll(String shaID, Commit c) {
-        if (shaID == null) {
-            return;
+    static void printLog(String shaID, int limit) {
+        int i = CommitGraph.indexOf(shaID);
+        if (i == CommitGraph.NONE) {
+            CommitGraph.rebuild();
+            i = CommitGraph.indexOf(shaID);
         }
-        System.out.println("===");
-        System.out.format("commit %s\n", shaID);
-        SimpleDateFormat formatter
-                = new SimpleDateFormat("EEE MMM d hh:mm:ss yyyy ZZZZ ");
-        String date = formatter.format(c.getTimestamp());
-        System.out.format("Date: %s\n", date);
-        System.out.println(c.getMessage());
-        System.out.println();
-        String pName = c.getParent();
-        if (pName != null) {
-            Commit pCommit = Commit.getCommitObject(pName);
-            printAll(pName, pCommit);
-        } else {
-            printAll(pName, null);
+        PrintWriter out = logWriter();
+        for (int n = 0; i != CommitGraph.NONE && n < limit; n += 1) {
+            String id = CommitGraph.idAt(i);
+            int second = CommitGraph.secondParent(i);
+            String merged = second == CommitGraph.NONE ? null
+                : CommitGraph.idAt(second);
+            String parent = merged == null ? null
+                : CommitGraph.idAt(CommitGraph.parent(i));
+            out.print(formatEntry(id, parent, merged,
+                                  CommitGraph.timestamp(i),
+                                  getCommitObject(id).getMessage()));
+            i = CommitGraph.parent(i);
         }
+        out.flush();
     }
 
-    /** Print out all the commit that has ever been made.
-     * Help with global-log command.
-     */
-    static void printGlobal() {
-        for (File cSubDir : COMMIT.listFiles()) {
-            for (File cFile : cSubDir.listFiles()) {
-                String shaName = cFile.getName();
-                Commit thisCommit = getCommitObject(shaName);
-                System.out.println("===");
-                System.out.format("commit %s\n", shaName);
-                SimpleDateFormat formatter
-                        = new SimpleDateFormat("EEE MMM d h"
-                        + "h:mm:ss yyyy ZZZZ ");
-                String date = formatter.format(thisCommit.getTimestamp());
-                System.out.format("Date: %s\n", date);
-                System.out.println(thisCommit.getMessage());
-                System.out.println();
-            }
-        }
+    /** Get a writer to standard output with a buffer large enough for
+     * many log entries. */
+    static PrintWriter logWriter() {
+        return new PrintWriter(new BufferedWriter(
+            new OutputStreamWriter(System.out, StandardCharsets.UTF_8),
+            Utils.BUFFER_SIZE));
     }
 
+    /** Get the log entry of commit ID, made at TIME (in milliseconds)
+     * with MESSAGE. A merge commit, whose SECONDPARENT isn't null, also
+     * gets a line with the short ids of PARENT and SECONDPARENT. */
+    static String formatEntry(String id, String parent, String secondParent,
+                              long time, String message) {
+        return "===\ncommit " + id + "\n"
+            + (secondParent == null ? "" : "Merge: " + parent.substring(0, 7)
+               + " " + secondParent.substring(0, 7) + "\n")
+            + "Date: "
+            + Dates.FORMAT.format(Instant.ofEpochMilli(time)) + "\n"
+            + message + "\n\n";
+    }
 
-    /** Get content of the file in the commit. Return as readable String
-     * @param filename Name of the file
-     * @return content of the file.
+    /** Print out all the commit that has ever been made.
+     * Help with global-log command.
      */
-    String getFileContent(String filename) throws Exception {
-        if (!getContent().keySet().contains(filename)) {
-            throw new Exception("No such file in the commit");
-        }
-        String shaName = getContent().get(filename);
-        return StagingArea.getContentFromSha(shaName);
+    static void printGlobal() {
+        PrintWriter out = logWriter();
+        scanCommits(ForkJoinPool.commonPool(), (id, c) ->
+            formatEntry(id, c.getParent(), c.getSecondParent(),
+                        c.getTimestamp().getTime(), c.getMessage()),
+            out);
+        out.flush();
     }
 
 
@@ -251,14 +461,53 @@ public class Commit implements Serializable {
         return _parent;
     }
 
-    /** Get the content of the current commit.
-     * @return The content of current commit.
+    /** Get second parent of this commit.
+     * @return sha1 name of the commit merged in, or null if this isn't a
+     * merge commit.
+     */
+    public String getSecondParent() {
+        return _secondParent;
+    }
+
+    /** Get the content of the current commit, reading its whole tree
+     * the first time.
+     * @return Map of every file name to its blob's sha1 name.
      */
     public HashMap<String, String> getContent() {
-        return _content;
+        if (_content != null) {
+            return _content;
+        }
+        if (_files == null) {
+            _files = new HashMap<>();
+            Tree.flatten(_tree, "", _files);
+        }
+        return _files;
     }
 
-    /** Get the sha1 name of the current commit.
+    /** Get the blob of one file, reading only the trees along its path.
+     * @param filename Name of the file.
+     * @return Sha1 name of its blob, or null if it isn't in this commit.
+     */
+    public String getBlob(String filename) {
+        if (_content != null) {
+            return _content.get(filename);
+        }
+        return Tree.blobOf(_tree, filename);
+    }
+
+    /** Get the root tree of this commit. A commit made before trees
+     * existed gets one made from its content.
+     * @return Sha1 name of the tree.
+     */
+    public String getTree() {
+        if (_tree == null) {
+            _tree = Tree.update(null, _content);
+        }
+        return _tree;
+    }
+
+    /** Get the sha1 name of the current commit: the id it was saved
+     * or loaded under, never recomputed.
      * @return Sha1 name.
      */
     public String getSha() {
@@ -283,6 +532,9 @@ public class Commit implements Serializable {
     /** Parent of the current commit. */
     private String _parent;
 
+    /** Second parent of a merge commit, or null. */
+    private String _secondParent;
+
     /** Commit message of current commit. */
     private String _message;
     /** Timestamp of current commit. */
@@ -292,9 +544,23 @@ public class Commit implements Serializable {
     private String _sha;
 
 
-    /** Blob content of the commit.
+    /** Sha1 name of the root tree of the commit. */
+    private String _tree;
+
+    /** Blob content of a commit made before trees existed, or null.
      * Key is file name. Value is corresponding blob's sha1 name. */
-    private HashMap<String, String> _content = new HashMap<>();
+    private HashMap<String, String> _content;
+
+    /** Content read from _tree by getContent, or null. */
+    private transient HashMap<String, String> _files;
+
+    /** Holds the format of dates in log entries, so that java.time and
+     * the time zone rules are only loaded by commands that print a log. */
+    private static class Dates {
+        /** Format of dates in log entries. Thread-safe, so made only
+         * once. */
+        static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("EEE MMM d hh:mm:ss yyyy Z ")
+            .withZone(ZoneId.systemDefault());
+    }
 }
-
-
@@ -0,0 +1,505 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+
+/** The commit graph: a side file describing the shape of history, so that
+ * it can be walked without deserializing commits. After a header (MAGIC
+ * and a version int) it's a table of fixed-width records, one per commit,
+ * parents always before children:
+ * 20 id bytes, the record numbers of the first and second parent (-1 if
+ * none), the timestamp in milliseconds, and the generation number (1 for
+ * a root commit, else one more than the largest generation of a parent).
+ * A commit is appended when it is saved; the file is rebuilt from all
+ * commits if it is missing or doesn't know a parent.
+ *
+ * Records are found by id through a second file, the graph index: MAGIC,
+ * a version int, the number of records it covers, a fan-out table of 256
+ * ints (entry b is the number of covered records whose id's first byte
+ * is at most b), and the covered record numbers sorted by id, so a
+ * lookup is a binary search within one fan-out bucket. Records appended
+ * since then are searched newest first, and the index is rewritten once
+ * there are MERGE of them.
+ * @author Heming Wu
+ */
+class CommitGraph {
+    /** Current working directory. */
+    static final File CWD = new File(System.getProperty("user.dir"));
+    /** Location of .gitlet directory. Assume it already exists.*/
+    static final File GITLET = Utils.join(CWD, ".gitlet");
+    /** Location of the commit graph. */
+    static final File COMMIT_GRAPH = Utils.join(GITLET, "CommitGraph");
+    /** Location of the graph index. */
+    static final File GRAPH_INDEX = Utils.join(GITLET, "CommitGraphIndex");
+    /** Number of records not in the graph index that triggers rewriting
+     * it. */
+    static final int MERGE = 1024;
+
+    /** First bytes of the commit graph. */
+    private static final byte[] MAGIC = {'G', 'C', 'G', 'R'};
+    /** Format version of the commit graph. */
+    private static final int VERSION = 1;
+    /** Length of the header. */
+    private static final int HEADER = 8;
+    /** Length of an id. */
+    private static final int ID_BYTES = Utils.UID_LENGTH / 2;
+    /** Length of a record. */
+    private static final int RECORD = ID_BYTES + 4 + 4 + 8 + 4;
+    /** First bytes of the graph index. */
+    private static final byte[] INDEX_MAGIC = {'G', 'C', 'G', 'I'};
+    /** Number of fan-out entries, one per value of an id's first byte. */
+    private static final int FANOUT = 256;
+    /** Length of the header of the graph index, fan-out included. */
+    private static final int INDEX_HEADER = 12 + 4 * FANOUT;
+    /** Record number meaning "no commit". */
+    static final int NONE = -1;
+    /** Mark of the commits mergeBase reaches from its first commit. */
+    private static final int FROM_A = 1;
+    /** Mark of the commits mergeBase reaches from its second commit. */
+    private static final int FROM_B = 2;
+
+    /** Append the commit C named SHA to the graph.
+     * @param sha Sha1 name of the commit.
+     * @param c The commit, whose parents are already in the graph (or in
+     * the commit store, from which the graph is then rebuilt).
+     */
+    static void add(String sha, Commit c) {
+        if (!COMMIT_GRAPH.exists()) {
+            rebuild();
+            if (indexOf(sha) != NONE) {
+                return;
+            }
+        }
+        for (String p : new String[] {c.getParent(), c.getSecondParent()}) {
+            if (p != null && indexOf(p) == NONE) {
+                rebuild();
+                if (indexOf(sha) != NONE) {
+                    return;
+                }
+            }
+        }
+        append(sha, c.getParent(), c.getSecondParent(),
+               c.getTimestamp().getTime());
+    }
+
+    /** Get the number of commits in the graph. */
+    static int size() {
+        load();
+        return (_graph.capacity() - HEADER) / RECORD;
+    }
+
+    /** Find the record of the commit named SHA: among the fewer than
+     * MERGE records not in the graph index, newest first, and then by a
+     * binary search of the index.
+     * @param sha Sha1 name of a commit.
+     * @return its record number, or NONE.
+     */
+    static int indexOf(String sha) {
+        load();
+        if (sha.length() != Utils.UID_LENGTH) {
+            return NONE;
+        }
+        byte[] id = Utils.toBytes(sha);
+        for (int i = size() - 1; i >= _indexed; i -= 1) {
+            if (compareAt(i, id) == 0) {
+                return i;
+            }
+        }
+        int first = id[0] & 0xff;
+        int lo = first == 0 ? 0 : _index.getInt(12 + 4 * (first - 1));
+        int hi = _index.getInt(12 + 4 * first);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int i = _index.getInt(INDEX_HEADER + 4 * mid);
+            int c = compareAt(i, id);
+            if (c == 0) {
+                return i;
+            } else if (c < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return NONE;
+    }
+
+    /** Compare the id of the commit in record I with ID, as unsigned
+     * bytes.
+     * @return negative, zero or positive as the id of record I is less
+     * than, equal to or greater than ID.
+     */
+    private static int compareAt(int i, byte[] id) {
+        int at = HEADER + i * RECORD;
+        for (int k = 0; k < ID_BYTES; k += 1) {
+            int c = (_graph.get(at + k) & 0xff) - (id[k] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Get the sha1 name of the commit in record I. */
+    static String idAt(int i) {
+        byte[] id = new byte[ID_BYTES];
+        _graph.get(HEADER + i * RECORD, id);
+        return Utils.toHex(id);
+    }
+
+    /** Get the record of the first parent of the commit in record I,
+     * or NONE. */
+    static int parent(int i) {
+        return _graph.getInt(HEADER + i * RECORD + ID_BYTES);
+    }
+
+    /** Get the record of the second parent of the commit in record I,
+     * or NONE. */
+    static int secondParent(int i) {
+        return _graph.getInt(HEADER + i * RECORD + ID_BYTES + 4);
+    }
+
+    /** Get the timestamp of the commit in record I, in milliseconds. */
+    static long timestamp(int i) {
+        return _graph.getLong(HEADER + i * RECORD + ID_BYTES + 8);
+    }
+
+    /** Get the generation number of the commit in record I. */
+    static int generation(int i) {
+        return _graph.getInt(HEADER + i * RECORD + ID_BYTES + 16);
+    }
+
+    /** Check if commit ANCESTOR is reachable from commit DESCENDANT
+     * (including being the same commit). Commits with a generation below
+     * ANCESTOR's are never explored, since they can't lead to it.
+     * @param ancestor Sha1 name of a commit.
+     * @param descendant Sha1 name of a commit.
+     * @return true if it is.
+     */
+    static boolean isAncestor(String ancestor, String descendant) {
+        int a = indexOf(ancestor);
+        int d = indexOf(descendant);
+        if (a == NONE || d == NONE) {
+            return false;
+        }
+        int floor = generation(a);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        HashSet<Integer> seen = new HashSet<>();
+        queue.add(d);
+        while (!queue.isEmpty()) {
+            int i = queue.poll();
+            if (i == a) {
+                return true;
+            }
+            if (generation(i) <= floor || !seen.add(i)) {
+                continue;
+            }
+            for (int p : new int[] {parent(i), secondParent(i)}) {
+                if (p != NONE) {
+                    queue.add(p);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Find the best common ancestor of commits A and B: a commit both
+     * descend from that no other such commit descends from. Walks back
+     * from both at once, always taking the queued commit of highest
+     * generation, and marking each commit with which of A and B reach
+     * it. Since every parent has a lower generation than its children,
+     * the first commit taken that both reach is the answer, and no commit
+     * of lower generation is ever visited.
+     * @param a Sha1 name of a commit.
+     * @param b Sha1 name of a commit.
+     * @return sha1 name of the common ancestor, or null if there's none.
+     */
+    static String mergeBase(String a, String b) {
+        if (indexOf(a) == NONE || indexOf(b) == NONE) {
+            rebuild();
+        }
+        int ia = indexOf(a);
+        int ib = indexOf(b);
+        if (ia == NONE || ib == NONE) {
+            return null;
+        }
+        HashMap<Integer, Integer> reached = new HashMap<>();
+        PriorityQueue<Integer> queue = new PriorityQueue<>(
+            (x, y) -> Integer.compare(generation(y), generation(x)));
+        reached.put(ia, FROM_A);
+        reached.merge(ib, FROM_B, (x, y) -> x | y);
+        queue.add(ia);
+        queue.add(ib);
+        while (!queue.isEmpty()) {
+            int i = queue.poll();
+            int from = reached.get(i);
+            if (from == (FROM_A | FROM_B)) {
+                return idAt(i);
+            }
+            for (int p : new int[] {parent(i), secondParent(i)}) {
+                if (p != NONE) {
+                    int old = reached.getOrDefault(p, 0);
+                    if ((old | from) != old) {
+                        reached.put(p, old | from);
+                        queue.add(p);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Rewrite the graph from all commits in the commit store. */
+    static void rebuild() {
+        GRAPH_INDEX.delete();
+        COMMIT_GRAPH.delete();
+        reset();
+        HashMap<String, Commit> commits = new HashMap<>();
+        for (String id : Commit.allCommitIds()) {
+            commits.put(id, Commit.load(id));
+        }
+        HashSet<String> done = new HashSet<>();
+        ArrayList<String> order = new ArrayList<>();
+        for (String id : commits.keySet()) {
+            ArrayDeque<String> stack = new ArrayDeque<>();
+            stack.push(id);
+            while (!stack.isEmpty()) {
+                String top = stack.peek();
+                if (done.contains(top)) {
+                    stack.pop();
+                    continue;
+                }
+                String next = null;
+                Commit c = commits.get(top);
+                for (String p : new String[] {c.getParent(),
+                                              c.getSecondParent()}) {
+                    if (p != null && commits.containsKey(p)
+                        && !done.contains(p)) {
+                        next = p;
+                        break;
+                    }
+                }
+                if (next != null) {
+                    stack.push(next);
+                } else {
+                    stack.pop();
+                    done.add(top);
+                    order.add(top);
+                }
+            }
+        }
+        HashMap<String, Integer> index = new HashMap<>();
+        int[] gens = new int[order.size()];
+        ByteBuffer buf = ByteBuffer.allocate(order.size() * RECORD);
+        for (String id : order) {
+            Commit c = commits.get(id);
+            int p1 = index.getOrDefault(c.getParent(), NONE);
+            int p2 = index.getOrDefault(c.getSecondParent(), NONE);
+            int i = index.size();
+            gens[i] = 1;
+            for (int p : new int[] {p1, p2}) {
+                if (p != NONE) {
+                    gens[i] = Math.max(gens[i], gens[p] + 1);
+                }
+            }
+            record(buf, id, p1, p2, c.getTimestamp().getTime(), gens[i]);
+            index.put(id, i);
+        }
+        write(buf.flip());
+    }
+
+    /** Append a record for commit SHA with parents PARENT and
+     * SECONDPARENT (either may be null, and both must be in the graph)
+     * and timestamp TIME. */
+    private static void append(String sha, String parent,
+                               String secondParent, long time) {
+        int p1 = parent == null ? NONE : indexOf(parent);
+        int p2 = secondParent == null ? NONE : indexOf(secondParent);
+        int gen = 1;
+        for (int p : new int[] {p1, p2}) {
+            if (p != NONE) {
+                gen = Math.max(gen, generation(p) + 1);
+            }
+        }
+        ByteBuffer buf = ByteBuffer.allocate(RECORD);
+        record(buf, sha, p1, p2, time, gen);
+        write(buf.flip());
+    }
+
+    /** Put a record of commit SHA, with parent records P1 and P2,
+     * timestamp TIME and generation GEN, into BUF. */
+    private static void record(ByteBuffer buf, String sha, int p1, int p2,
+                               long time, int gen) {
+        buf.put(Utils.toBytes(sha)).putInt(p1).putInt(p2).putLong(time)
+            .putInt(gen);
+    }
+
+    /** Append the records in BUF to the graph file, creating it if
+     * needed. A partial record left at its end by a crash is cut off
+     * first, so the new ones stay aligned. */
+    private static void write(ByteBuffer buf) {
+        try (FileChannel out = FileChannel.open(COMMIT_GRAPH.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            if (whole(out.size()) != out.size()) {
+                out.truncate(whole(out.size()));
+            }
+            if (out.size() == 0) {
+                out.write(ByteBuffer.allocate(HEADER).put(MAGIC)
+                          .putInt(VERSION).flip());
+            }
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        _graph = null;
+        load();
+        if (size() - _indexed >= MERGE) {
+            writeIndex();
+        }
+    }
+
+    /** Rewrite the graph index to cover every record of the graph. */
+    private static void writeIndex() {
+        int size = size();
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i += 1) {
+            order[i] = i;
+        }
+        byte[] id = new byte[ID_BYTES];
+        Arrays.sort(order, (x, y) -> {
+            _graph.get(HEADER + y * RECORD, id);
+            return compareAt(x, id);
+        });
+        int[] fanout = new int[FANOUT];
+        for (int i = 0; i < size; i += 1) {
+            fanout[_graph.get(HEADER + i * RECORD) & 0xff] += 1;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(INDEX_HEADER + 4 * size);
+        buf.put(INDEX_MAGIC).putInt(VERSION).putInt(size);
+        int total = 0;
+        for (int count : fanout) {
+            total += count;
+            buf.putInt(total);
+        }
+        for (int i : order) {
+            buf.putInt(i);
+        }
+        try {
+            File tmp = File.createTempFile("CommitGraphIndex", ".tmp",
+                                           GITLET);
+            Files.write(tmp.toPath(), buf.array());
+            Files.move(tmp.toPath(), GRAPH_INDEX.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        _index = null;
+        loadIndex();
+    }
+
+    /** Forget the mapped graph and index, so the next use maps them
+     * again. */
+    static void reset() {
+        _graph = null;
+        _index = null;
+    }
+
+    /** Get the length of the whole header and records among the first
+     * SIZE bytes of the graph file: 0 if the header isn't whole. */
+    private static long whole(long size) {
+        return size < HEADER ? 0
+            : HEADER + (size - HEADER) / RECORD * RECORD;
+    }
+
+    /** Map the graph, if not done yet. A partial record at its end, left
+     * by a crash, is cut off, and a graph without a whole header is
+     * removed, to be rebuilt. */
+    private static void load() {
+        if (_graph != null) {
+            return;
+        }
+        _index = null;
+        if (!COMMIT_GRAPH.exists()) {
+            _graph = ByteBuffer.allocate(HEADER);
+            _index = ByteBuffer.allocate(INDEX_HEADER);
+            _indexed = 0;
+            return;
+        }
+        long length;
+        try (FileChannel in = FileChannel.open(COMMIT_GRAPH.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            length = whole(in.size());
+            if (length != in.size()) {
+                in.truncate(length);
+            }
+            if (length > 0) {
+                _graph = in.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                byte[] magic = new byte[MAGIC.length];
+                _graph.get(0, magic);
+                if (!Arrays.equals(magic, MAGIC)
+                    || _graph.getInt(4) != VERSION) {
+                    throw Utils.error("Corrupt commit graph.");
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (length == 0) {
+            COMMIT_GRAPH.delete();
+            load();
+            return;
+        }
+        loadIndex();
+    }
+
+    /** Map the graph index of the loaded graph, writing it first if it is
+     * missing or covers more records than the graph has. */
+    private static void loadIndex() {
+        if (_index != null) {
+            return;
+        }
+        if (GRAPH_INDEX.exists()) {
+            try (FileChannel in = FileChannel.open(GRAPH_INDEX.toPath())) {
+                ByteBuffer index =
+                    in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+                byte[] magic = new byte[INDEX_MAGIC.length];
+                if (index.capacity() >= INDEX_HEADER) {
+                    index.get(0, magic);
+                }
+                if (Arrays.equals(magic, INDEX_MAGIC)
+                    && index.getInt(4) == VERSION
+                    && index.getInt(8) <= size()
+                    && index.capacity() == INDEX_HEADER
+                        + 4 * index.getInt(8)) {
+                    _index = index;
+                    _indexed = index.getInt(8);
+                    return;
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        writeIndex();
+    }
+
+    /** The mapped graph, or null if not loaded yet. */
+    private static ByteBuffer _graph;
+    /** The mapped graph index, or null if not loaded yet. */
+    private static ByteBuffer _index;
+    /** Number of records covered by _index. */
+    private static int _indexed;
+}
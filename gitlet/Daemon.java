@@ -0,0 +1,274 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** A long-running gitlet that runs commands sent by Clients over the
+ * Unix domain socket SOCKET, one at a time, in one warm JVM.
+ *
+ * A client sends the number of arguments and then each argument, all in
+ * UTF-8 and each followed by a NUL byte. The daemon runs them as Main
+ * would, sends back everything the command prints, and closes the
+ * connection. The arguments "daemon stop" stop the daemon instead.
+ *
+ * Commits and blobs are named by their content, so the ObjectCache stays
+ * warm across commands. The state read from files that another process
+ * may write (the STATE files) is dropped before a command if the file's
+ * modification time, length or inode changed since the last command
+ * ended, and after a command that failed. A watcher on the .gitlet
+ * directory stops the daemon once SOCKET or the repository is deleted.
+ * @author Heming Wu
+ */
+class Daemon {
+    /** Current working directory. */
+    static final File CWD = new File(System.getProperty("user.dir"));
+    /** Location of .gitlet directory. Assume it already exists.*/
+    static final File GITLET = Utils.join(CWD, ".gitlet");
+    /** Location of the socket the daemon listens on. */
+    static final File SOCKET = Utils.join(GITLET, "daemon.sock");
+
+    /** The files whose contents are kept in memory between commands,
+     * with how to drop what was read from each. */
+    private static final Map<File, Runnable> STATE = new LinkedHashMap<>();
+
+    static {
+        STATE.put(StagingArea.INDEX, StagingArea::reset);
+        STATE.put(Branch.BRANCHES, Branch::reset);
+        STATE.put(StatCache.STAT_CACHE, StatCache::reset);
+        STATE.put(CommitGraph.COMMIT_GRAPH, CommitGraph::reset);
+        STATE.put(CommitGraph.GRAPH_INDEX, CommitGraph::reset);
+        STATE.put(ObjectIndex.OBJECT_INDEX, ObjectIndex::reset);
+        STATE.put(Pack.PACK_INDEX, Pack::reset);
+    }
+
+    /** Serve commands on SOCKET until stopped. */
+    static void serve() throws IOException {
+        SocketChannel running = connect();
+        if (running != null) {
+            running.close();
+            throw new GitletException("A daemon is already running.");
+        }
+        SOCKET.delete();
+        try (ServerSocketChannel server =
+                 ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET.toPath()));
+            watch(server);
+            _versions = versions();
+            boolean serving = true;
+            while (serving) {
+                try (SocketChannel client = server.accept()) {
+                    serving = handle(client);
+                } catch (IOException excp) {
+                    serving = server.isOpen();
+                }
+            }
+        } finally {
+            SOCKET.delete();
+        }
+    }
+
+    /** Stop the daemon running in this repository.
+     * @return false if there is none.
+     */
+    static boolean stop() throws IOException {
+        SocketChannel channel = connect();
+        if (channel == null) {
+            return false;
+        }
+        try (channel) {
+            send(channel, "daemon", "stop");
+            Channels.newInputStream(channel).transferTo(System.out);
+        }
+        return true;
+    }
+
+    /** Connect to the daemon running in this repository.
+     * @return the connection, or null if no daemon is running.
+     */
+    static SocketChannel connect() {
+        if (!SOCKET.exists()) {
+            return null;
+        }
+        try {
+            return SocketChannel.open(
+                UnixDomainSocketAddress.of(SOCKET.toPath()));
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Send the command ARGS to the daemon over CHANNEL. */
+    static void send(SocketChannel channel, String... args)
+        throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.writeBytes(Integer.toString(args.length)
+                           .getBytes(StandardCharsets.UTF_8));
+        request.write(0);
+        for (String arg : args) {
+            request.writeBytes(arg.getBytes(StandardCharsets.UTF_8));
+            request.write(0);
+        }
+        ByteBuffer buf = ByteBuffer.wrap(request.toByteArray());
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /** Run the command sent over CLIENT, with its output going back to
+     * CLIENT.
+     * @return false if the daemon was asked to stop.
+     */
+    private static boolean handle(SocketChannel client) throws IOException {
+        List<String> args = receive(Channels.newInputStream(client));
+        PrintStream reply = new PrintStream(new BufferedOutputStream(
+            Channels.newOutputStream(client), Utils.BUFFER_SIZE), false,
+            StandardCharsets.UTF_8);
+        if (!args.isEmpty() && args.get(0).equals("daemon")) {
+            boolean stop = args.size() == 2 && args.get(1).equals("stop");
+            reply.println(stop ? "Daemon stopped."
+                          : "A daemon is already running.");
+            reply.flush();
+            return !stop;
+        }
+        refresh();
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        System.setOut(reply);
+        System.setErr(reply);
+        try {
+            Main.run(args.toArray(new String[0]));
+        } catch (GitletException excp) {
+            reply.println(excp.getMessage());
+            forget();
+        } catch (Exception excp) {
+            excp.printStackTrace(reply);
+            forget();
+        } finally {
+            System.setOut(out);
+            System.setErr(err);
+            reply.flush();
+            _versions = versions();
+        }
+        return true;
+    }
+
+    /** Read a command sent as described above from IN.
+     * @return its arguments.
+     */
+    private static List<String> receive(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        int count;
+        try {
+            count = Integer.parseInt(readField(buffered));
+        } catch (NumberFormatException excp) {
+            throw new IOException("Bad request.");
+        }
+        ArrayList<String> args = new ArrayList<>();
+        for (int i = 0; i < count; i += 1) {
+            args.add(readField(buffered));
+        }
+        return args;
+    }
+
+    /** Read the bytes up to the next NUL byte of IN as a string. */
+    private static String readField(InputStream in) throws IOException {
+        ByteArrayOutputStream field = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != 0) {
+            if (c < 0) {
+                throw new IOException("Truncated request.");
+            }
+            field.write(c);
+        }
+        return field.toString(StandardCharsets.UTF_8);
+    }
+
+    /** Drop what was read from each STATE file that changed since the
+     * last command ended. */
+    private static void refresh() {
+        HashMap<File, String> now = versions();
+        for (Map.Entry<File, Runnable> e : STATE.entrySet()) {
+            if (!now.get(e.getKey()).equals(_versions.get(e.getKey()))) {
+                e.getValue().run();
+            }
+        }
+    }
+
+    /** Drop what was read from every STATE file, along with any changes
+     * to it that weren't saved. */
+    private static void forget() {
+        for (Runnable reset : STATE.values()) {
+            reset.run();
+        }
+    }
+
+    /** Get the modification time, length and inode of each STATE file,
+     * or "none" for one that doesn't exist. */
+    private static HashMap<File, String> versions() {
+        HashMap<File, String> result = new HashMap<>();
+        for (File f : STATE.keySet()) {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(
+                    f.toPath(), BasicFileAttributes.class);
+                result.put(f, attrs.lastModifiedTime()
+                           .to(TimeUnit.NANOSECONDS) + "/" + attrs.size()
+                           + "/" + attrs.fileKey());
+            } catch (IOException excp) {
+                result.put(f, "none");
+            }
+        }
+        return result;
+    }
+
+    /** Close SERVER once SOCKET or the .gitlet directory is deleted,
+     * watching for deletions in the background. */
+    private static void watch(ServerSocketChannel server) throws IOException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        GITLET.toPath().register(watcher,
+                                 StandardWatchEventKinds.ENTRY_DELETE);
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    key.pollEvents();
+                    if (!key.reset() || !SOCKET.exists()) {
+                        server.close();
+                        watcher.close();
+                        return;
+                    }
+                }
+            } catch (InterruptedException | IOException excp) {
+                return;
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Versions of the STATE files when the last command ended. */
+    private static HashMap<File, String> _versions;
+}
@@ -0,0 +1,171 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+
+/** Delta encoding of one version of a file against another. A delta is
+ * the base length and the result length, followed by instructions that
+ * either COPY a range of the base or INSERT literal bytes. Matches are
+ * found with a rolling hash over BLOCK byte windows of the new version,
+ * looked up in a table of the base's aligned blocks.
+ * @author Heming Wu
+ */
+class Delta {
+
+    /** Instruction inserting the bytes that follow it. */
+    private static final int INSERT = 0;
+    /** Instruction copying a range of the base. */
+    private static final int COPY = 1;
+    /** Length of the hashed windows. Shorter matches are not found. */
+    static final int BLOCK = 16;
+    /** Multiplier of the rolling hash. */
+    private static final int PRIME = 0x01000193;
+    /** PRIME to the power BLOCK - 1, to remove a byte from the hash. */
+    private static final int OUT_FACTOR;
+
+    static {
+        int f = 1;
+        for (int i = 1; i < BLOCK; i += 1) {
+            f *= PRIME;
+        }
+        OUT_FACTOR = f;
+    }
+
+    /** Encode TARGET as a delta against BASE.
+     * @param base The older version.
+     * @param target The version to encode.
+     * @return the delta.
+     */
+    static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+        if (base.length < BLOCK || target.length < BLOCK) {
+            insert(out, target, 0, target.length);
+            return out.toByteArray();
+        }
+        int size = Integer.highestOneBit(base.length / BLOCK * 2 + 1) << 1;
+        int mask = size - 1;
+        int[] table = new int[size];
+        for (int b = 0; b + BLOCK <= base.length; b += BLOCK) {
+            table[hash(base, b) & mask] = b + 1;
+        }
+        int i = 0, pending = 0;
+        int h = hash(target, 0);
+        while (i + BLOCK <= target.length) {
+            int slot = table[h & mask] - 1;
+            if (slot >= 0 && equal(base, slot, target, i, BLOCK)) {
+                int b = slot;
+                while (b > 0 && i > pending && base[b - 1] == target[i - 1]) {
+                    b -= 1;
+                    i -= 1;
+                }
+                int len = 0;
+                while (b + len < base.length && i + len < target.length
+                       && base[b + len] == target[i + len]) {
+                    len += 1;
+                }
+                insert(out, target, pending, i);
+                out.write(COPY);
+                writeVarint(out, b);
+                writeVarint(out, len);
+                i += len;
+                pending = i;
+                if (i + BLOCK <= target.length) {
+                    h = hash(target, i);
+                }
+                continue;
+            }
+            if (i + BLOCK < target.length) {
+                h = (h - target[i] * OUT_FACTOR) * PRIME + target[i + BLOCK];
+            }
+            i += 1;
+        }
+        insert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /** Rebuild the version DELTA encodes against BASE.
+     * @param base The older version.
+     * @param delta A delta made by create.
+     * @return the encoded version.
+     */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        if (readVarint(delta, pos) != base.length) {
+            throw Utils.error("Delta does not match its base.");
+        }
+        byte[] result = new byte[(int) readVarint(delta, pos)];
+        int op = 0;
+        while (pos[0] < delta.length) {
+            int code = delta[pos[0]++];
+            if (code == COPY) {
+                int from = (int) readVarint(delta, pos);
+                int len = (int) readVarint(delta, pos);
+                System.arraycopy(base, from, result, op, len);
+                op += len;
+            } else {
+                int len = (int) readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], result, op, len);
+                pos[0] += len;
+                op += len;
+            }
+        }
+        if (op != result.length) {
+            throw Utils.error("Corrupt delta.");
+        }
+        return result;
+    }
+
+    /** Write an instruction inserting TARGET[FROM..TO) into OUT, if that
+     * range isn't empty. */
+    private static void insert(ByteArrayOutputStream out, byte[] target,
+                               int from, int to) {
+        if (from < to) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    /** Return the rolling hash of the BLOCK bytes of B at FROM. */
+    private static int hash(byte[] b, int from) {
+        int h = 0;
+        for (int i = from; i < from + BLOCK; i += 1) {
+            h = h * PRIME + b[i];
+        }
+        return h;
+    }
+
+    /** Check if the LEN bytes of A at I equal the LEN bytes of B at J. */
+    private static boolean equal(byte[] a, int i, byte[] b, int j, int len) {
+        for (int k = 0; k < len; k += 1) {
+            if (a[i + k] != b[j + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Write N to OUT seven bits at a time, low bits first. */
+    private static void writeVarint(ByteArrayOutputStream out, long n) {
+        while (n >= 0x80) {
+            out.write((int) (n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.write((int) n);
+    }
+
+    /** Read a number written by writeVarint from B at POS[0], advancing
+     * POS[0] past it. */
+    private static long readVarint(byte[] b, int[] pos) {
+        long n = 0;
+        int shift = 0;
+        int c;
+        do {
+            c = b[pos[0]++] & 0xff;
+            n |= (long) (c & 0x7f) << shift;
+            shift += 7;
+        } while ((c & 0x80) != 0);
+        return n;
+    }
+}
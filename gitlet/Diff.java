@@ -0,0 +1,304 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** A line diff of two versions of a file, found with Myers' linear-space
+ * algorithm: the middle snake of the edit graph splits the problem in
+ * two, so only two vectors of diagonals are kept, however far apart the
+ * versions are. Lines are compared as ints, each distinct line (with its
+ * line terminator) getting its own number.
+ * @author Heming Wu
+ */
+class Diff {
+    /** Number of unchanged lines shown around each change. */
+    static final int CONTEXT = 3;
+    /** Versions longer than this are not compared line by line, so a
+     * diff never holds more than two of them in memory. */
+    static final int LIMIT = 16 << 20;
+
+    /** Find the differences between the lines A and B.
+     * @param a Lines of the old version, one number per distinct line.
+     * @param b Lines of the new version, numbered the same way.
+     */
+    Diff(int[] a, int[] b) {
+        _a = a;
+        _b = b;
+        _removed = new boolean[a.length];
+        _added = new boolean[b.length];
+        int max = (a.length + b.length + 1) / 2 + 1;
+        _forward = new int[2 * max + 1];
+        _backward = new int[2 * max + 1];
+        _offset = max;
+        compare(0, a.length, 0, b.length);
+        _forward = null;
+        _backward = null;
+    }
+
+    /** Check if line I of the old version was removed. */
+    boolean removed(int i) {
+        return _removed[i];
+    }
+
+    /** Check if line J of the new version was added. */
+    boolean added(int j) {
+        return _added[j];
+    }
+
+    /** Print the differences between two versions of the file PATH, in
+     * unified format with CONTEXT lines of context. Hunks at most
+     * 2 * CONTEXT lines apart are joined. Binary versions, and versions
+     * longer than LIMIT, are only reported as differing; no more than
+     * LIMIT bytes of each are read.
+     * @param path Name of the file.
+     * @param old The old content, or null if the file was added.
+     * @param now The new content, or null if the file was removed.
+     * @param out Where the differences are printed.
+     */
+    static void print(String path, InputStream old, InputStream now,
+                      PrintWriter out) throws IOException {
+        out.print("diff --git a/" + path + " b/" + path + "\n");
+        byte[] a = old == null ? null : old.readNBytes(LIMIT + 1);
+        byte[] b = now == null ? null : now.readNBytes(LIMIT + 1);
+        String from = old == null ? "/dev/null" : "a/" + path;
+        String to = now == null ? "/dev/null" : "b/" + path;
+        if (tooLong(a) || tooLong(b)) {
+            out.print("Files " + from + " and " + to + " differ\n");
+            return;
+        }
+        if (isBinary(a) || isBinary(b)) {
+            out.print("Binary files " + from + " and " + to + " differ\n");
+            return;
+        }
+        out.print("--- " + from + "\n");
+        out.print("+++ " + to + "\n");
+        HashMap<String, Integer> numbers = new HashMap<>();
+        ArrayList<String> lines = new ArrayList<>();
+        int[] x = number(a, numbers, lines);
+        int[] y = number(b, numbers, lines);
+        new Diff(x, y).printHunks(x, y, lines, out);
+    }
+
+    /** Check if CONTENT (null if missing) is longer than LIMIT. */
+    private static boolean tooLong(byte[] content) {
+        return content != null && content.length > LIMIT;
+    }
+
+    /** Print the hunks of this diff of A and B, whose lines are numbers
+     * into LINES, to OUT. */
+    private void printHunks(int[] a, int[] b, ArrayList<String> lines,
+                            PrintWriter out) {
+        int i = 0, j = 0;
+        while (true) {
+            int ci = i, cj = j;
+            while (ci < a.length && cj < b.length && !_removed[ci]
+                   && !_added[cj]) {
+                ci += 1;
+                cj += 1;
+            }
+            if (ci == a.length && cj == b.length) {
+                return;
+            }
+            int lead = Math.min(CONTEXT, ci - i);
+            int si = ci - lead, sj = cj - lead;
+            int ei = ci, ej = cj;
+            int same = 0;
+            while ((ei < a.length || ej < b.length)
+                   && same <= 2 * CONTEXT) {
+                if (ei < a.length && _removed[ei]) {
+                    ei += 1;
+                    same = 0;
+                } else if (ej < b.length && _added[ej]) {
+                    ej += 1;
+                    same = 0;
+                } else {
+                    ei += 1;
+                    ej += 1;
+                    same += 1;
+                }
+            }
+            int trail = Math.min(same, CONTEXT);
+            ei -= same - trail;
+            ej -= same - trail;
+            out.print("@@ -" + range(si, ei - si) + " +" + range(sj, ej - sj)
+                      + " @@\n");
+            while (si < ei || sj < ej) {
+                if (si < ei && _removed[si]) {
+                    printLine('-', lines.get(a[si]), out);
+                    si += 1;
+                } else if (sj < ej && _added[sj]) {
+                    printLine('+', lines.get(b[sj]), out);
+                    sj += 1;
+                } else {
+                    printLine(' ', lines.get(a[si]), out);
+                    si += 1;
+                    sj += 1;
+                }
+            }
+            i = ei;
+            j = ej;
+        }
+    }
+
+    /** Get the range of a hunk header starting at line index START and
+     * COUNT lines long, as unified diffs write it. */
+    private static String range(int start, int count) {
+        if (count == 1) {
+            return Integer.toString(start + 1);
+        }
+        return (count == 0 ? start : start + 1) + "," + count;
+    }
+
+    /** Print LINE prefixed by MARK to OUT, noting a missing newline. */
+    private static void printLine(char mark, String line, PrintWriter out) {
+        out.print(mark);
+        out.print(line);
+        if (!line.endsWith("\n")) {
+            out.print("\n\\ No newline at end of file\n");
+        }
+    }
+
+    /** Split CONTENT (null if missing) into lines and number them,
+     * giving each line not yet in NUMBERS the next number, and adding it
+     * to LINES.
+     * @return the numbers of the lines.
+     */
+    private static int[] number(byte[] content,
+                                HashMap<String, Integer> numbers,
+                                ArrayList<String> lines) {
+        if (content == null) {
+            return new int[0];
+        }
+        String text = new String(content, StandardCharsets.UTF_8);
+        ArrayList<Integer> result = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start) + 1;
+            if (end == 0) {
+                end = text.length();
+            }
+            String line = text.substring(start, end);
+            Integer n = numbers.get(line);
+            if (n == null) {
+                n = lines.size();
+                numbers.put(line, n);
+                lines.add(line);
+            }
+            result.add(n);
+            start = end;
+        }
+        return result.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** Check if CONTENT (null if missing) has a NUL byte, as binary
+     * files have and text files don't. */
+    private static boolean isBinary(byte[] content) {
+        if (content != null) {
+            for (byte c : content) {
+                if (c == 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Mark the differences between lines ALO to AHI of _a and lines
+     * BLO to BHI of _b. Common leading and trailing lines are skipped;
+     * what's left is split at its middle snake. */
+    private void compare(int alo, int ahi, int blo, int bhi) {
+        while (alo < ahi && blo < bhi && _a[alo] == _b[blo]) {
+            alo += 1;
+            blo += 1;
+        }
+        while (alo < ahi && blo < bhi && _a[ahi - 1] == _b[bhi - 1]) {
+            ahi -= 1;
+            bhi -= 1;
+        }
+        if (alo == ahi) {
+            for (int j = blo; j < bhi; j += 1) {
+                _added[j] = true;
+            }
+        } else if (blo == bhi) {
+            for (int i = alo; i < ahi; i += 1) {
+                _removed[i] = true;
+            }
+        } else {
+            int[] snake = middleSnake(alo, ahi, blo, bhi);
+            compare(alo, snake[0], blo, snake[1]);
+            compare(snake[2], ahi, snake[3], bhi);
+        }
+    }
+
+    /** Find the middle snake of the edit graph of lines ALO to AHI of _a
+     * and BLO to BHI of _b, by extending the furthest reaching paths from
+     * both corners until they overlap. Both ranges are non-empty and
+     * their first and last lines differ, so both halves around the snake
+     * are smaller problems.
+     * @return the start and end of the snake: its index into _a and _b
+     * at the start, then at the end.
+     */
+    private int[] middleSnake(int alo, int ahi, int blo, int bhi) {
+        int n = ahi - alo, m = bhi - blo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int[] vf = _forward, vb = _backward;
+        int off = _offset;
+        vf[off + 1] = 0;
+        vb[off + 1] = 0;
+        for (int d = 0; d <= (n + m + 1) / 2; d += 1) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && vf[off + k - 1] < vf[off + k + 1])
+                    ? vf[off + k + 1] : vf[off + k - 1] + 1;
+                int y = x - k;
+                int x0 = x, y0 = y;
+                while (x < n && y < m && _a[alo + x] == _b[blo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                vf[off + k] = x;
+                int c = delta - k;
+                if (odd && c >= -(d - 1) && c <= d - 1
+                    && x + vb[off + c] >= n) {
+                    return new int[] {alo + x0, blo + y0, alo + x, blo + y};
+                }
+            }
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && vb[off + k - 1] < vb[off + k + 1])
+                    ? vb[off + k + 1] : vb[off + k - 1] + 1;
+                int y = x - k;
+                int x0 = x, y0 = y;
+                while (x < n && y < m
+                       && _a[ahi - 1 - x] == _b[bhi - 1 - y]) {
+                    x += 1;
+                    y += 1;
+                }
+                vb[off + k] = x;
+                int c = delta - k;
+                if (!odd && c >= -d && c <= d && x + vf[off + c] >= n) {
+                    return new int[] {ahi - x, bhi - y, ahi - x0, bhi - y0};
+                }
+            }
+        }
+        throw Utils.error("Internal error in diff.");
+    }
+
+    /** Lines of the old version. */
+    private final int[] _a;
+    /** Lines of the new version. */
+    private final int[] _b;
+    /** Which lines of _a were removed. */
+    private final boolean[] _removed;
+    /** Which lines of _b were added. */
+    private final boolean[] _added;
+    /** Furthest reaching forward path on each diagonal, while comparing. */
+    private int[] _forward;
+    /** Furthest reaching backward path on each diagonal, while comparing. */
+    private int[] _backward;
+    /** Index of diagonal 0 in _forward and _backward. */
+    private final int _offset;
+}
@@ -10,6 +10,18 @@ public class Main {
     /** Usage: java gitlet.Main ARGS, where ARGS contains
      *  <COMMAND> <OPERAND> .... */
     public static void main(String... args) throws Exception {
+        try {
+            run(args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+            System.exit(0);
+        }
+    }
+
+    /** Run the command in ARGS and save what it changed. A command that
+     *  fails throws a GitletException whose message is to be printed,
+     *  and saves nothing. Used by main and by the Daemon. */
+    static void run(String... args) throws Exception {
         Commander c = new Commander(args);
         String command = args[0];
         switch (command) {
@@ -49,10 +61,24 @@ public class Main {
         case "reset":
             c.reset();
             break;
+        case "diff":
+            c.diff();
+            break;
+        case "merge":
+            c.merge();
+            break;
+        case "pack":
+            c.pack();
+            break;
+        case "daemon":
+            c.daemon();
+            return;
         default:
-            System.out.println("No command with that name exists");
-            System.exit(0);
+            throw new GitletException("No command with that name exists");
         }
+        StagingArea.save();
+        StatCache.save();
+        ObjectCache.report();
     }
 
 }
@@ -0,0 +1,369 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/** An index of commit messages, so that find doesn't have to load every
+ * commit. New commits go to a journal of (id, message) records; once it
+ * holds COMPACT commits, they are moved into 256 hash buckets of fixed
+ * width (key, commit id) postings:
+ * exact buckets, keyed by the first eight bytes of the message's sha1,
+ * and gram buckets, keyed by each three character substring of the
+ * message. Each bucket is kept sorted by key and then id, so a query
+ * binary-searches the buckets of its keys and reads only their postings
+ * of those keys, plus the journal; candidates from the buckets are
+ * checked against their commit. An index without the current VERSION
+ * file, such as one whose buckets weren't sorted, is rebuilt.
+ * @author Heming Wu
+ */
+class MessageIndex {
+    /** Current working directory. */
+    static final File CWD = new File(System.getProperty("user.dir"));
+    /** Location of .gitlet directory. Assume it already exists.*/
+    static final File GITLET = Utils.join(CWD, ".gitlet");
+    /** Location of the message index. */
+    static final File MESSAGE_INDEX = Utils.join(GITLET, "MessageIndex");
+    /** Location of the journal of recent commits. */
+    static final File JOURNAL = Utils.join(MESSAGE_INDEX, "journal");
+    /** Location of the file holding the format version of the index. */
+    static final File VERSION_FILE = Utils.join(MESSAGE_INDEX, "version");
+
+    /** Number of journal records that triggers a compaction. */
+    static final int COMPACT = 512;
+    /** Length of the substrings indexed for substring search. */
+    static final int GRAM = 3;
+    /** Length of an id. */
+    private static final int ID_BYTES = Utils.UID_LENGTH / 2;
+    /** Length of a bucket posting. */
+    private static final int POSTING = 8 + ID_BYTES;
+    /** Format version of the index. */
+    private static final String VERSION = "2";
+
+    /** Kinds of query. */
+    enum Mode {
+        /** Whole message equals the query. */
+        EXACT,
+        /** Message starts with the query. */
+        PREFIX,
+        /** Message contains the query. */
+        CONTAINS
+    }
+
+    /** Add commit ID with MESSAGE to the index.
+     * @param id Sha1 name of a commit that is already saved.
+     * @param message Its message.
+     */
+    static void add(String id, String message) {
+        if (!isCurrent()) {
+            rebuild();
+            return;
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(JOURNAL,
+                                                              true)))) {
+            writeRecord(out, id, message);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        HashMap<String, String> journal = readJournal();
+        if (journal.size() >= COMPACT) {
+            compact(journal);
+            JOURNAL.delete();
+        }
+    }
+
+    /** Find the commits whose message matches QUERY the MODE way.
+     * @param query The text searched for.
+     * @param mode How it has to match.
+     * @return sorted sha1 names of the matching commits, or null if the
+     * index can't answer the query (it's shorter than GRAM).
+     */
+    static TreeSet<String> find(String query, Mode mode) {
+        if (!isCurrent()) {
+            rebuild();
+        }
+        if (mode != Mode.EXACT && query.length() < GRAM) {
+            return null;
+        }
+        TreeSet<String> result = new TreeSet<>();
+        for (Map.Entry<String, String> e : readJournal().entrySet()) {
+            if (matches(e.getValue(), query, mode)) {
+                result.add(e.getKey());
+            }
+        }
+        HashSet<String> candidates = null;
+        if (mode == Mode.EXACT) {
+            candidates = postings("exact", exactKey(query));
+        } else {
+            for (long key : grams(query)) {
+                HashSet<String> ids = postings("gram", key);
+                if (candidates != null) {
+                    ids.retainAll(candidates);
+                }
+                candidates = ids;
+                if (candidates.isEmpty()) {
+                    break;
+                }
+            }
+        }
+        for (String id : candidates) {
+            if (!result.contains(id)
+                && matches(Commit.getCommitObject(id).getMessage(),
+                           query, mode)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /** Rewrite the index from all commits in the commit store. */
+    static void rebuild() {
+        Utils.deleteRecursively(MESSAGE_INDEX);
+        MESSAGE_INDEX.mkdir();
+        HashMap<String, String> messages = new HashMap<>();
+        for (String id : Commit.allCommitIds()) {
+            messages.put(id, Commit.load(id).getMessage());
+        }
+        compact(messages);
+        Utils.writeContents(VERSION_FILE, VERSION);
+    }
+
+    /** Check if the index exists and has the current format. */
+    private static boolean isCurrent() {
+        return VERSION_FILE.isFile()
+            && Utils.readContentsAsString(VERSION_FILE).equals(VERSION);
+    }
+
+    /** Check if MESSAGE matches QUERY the MODE way. */
+    static boolean matches(String message, String query, Mode mode) {
+        switch (mode) {
+        case EXACT:
+            return message.equals(query);
+        case PREFIX:
+            return message.startsWith(query);
+        default:
+            return message.contains(query);
+        }
+    }
+
+    /** Move the commits in MESSAGES (id to message) into the buckets:
+     * the new postings of each bucket are sorted on their own and merged
+     * with its sorted postings in one pass. */
+    private static void compact(Map<String, String> messages) {
+        HashMap<String, ByteBuffer> buckets = new HashMap<>();
+        for (Map.Entry<String, String> e : messages.entrySet()) {
+            byte[] id = Utils.toBytes(e.getKey());
+            post(buckets, "exact", exactKey(e.getValue()), id);
+            for (long key : grams(e.getValue())) {
+                post(buckets, "gram", key, id);
+            }
+        }
+        for (Map.Entry<String, ByteBuffer> e : buckets.entrySet()) {
+            File f = Utils.join(MESSAGE_INDEX, e.getKey());
+            ByteBuffer added = e.getValue().flip();
+            byte[] fresh = sort(Arrays.copyOf(added.array(),
+                                              added.remaining()));
+            try {
+                byte[] old = f.exists() ? Files.readAllBytes(f.toPath())
+                    : new byte[0];
+                File tmp = File.createTempFile("bucket", ".tmp",
+                                               MESSAGE_INDEX);
+                Files.write(tmp.toPath(), merge(old, fresh));
+                Files.move(tmp.toPath(), f.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+
+    /** Get the postings in BUCKET sorted by key and then id, without
+     * duplicates. */
+    private static byte[] sort(byte[] bucket) {
+        ByteBuffer buf = ByteBuffer.wrap(bucket);
+        Integer[] order = new Integer[bucket.length / POSTING];
+        for (int i = 0; i < order.length; i += 1) {
+            order[i] = i * POSTING;
+        }
+        Arrays.sort(order, (x, y) -> compare(buf, x, buf, y));
+        ByteBuffer result = ByteBuffer.allocate(bucket.length);
+        for (int i = 0; i < order.length; i += 1) {
+            if (i == 0 || compare(buf, order[i - 1], buf, order[i]) != 0) {
+                result.put(bucket, order[i], POSTING);
+            }
+        }
+        return Arrays.copyOf(result.array(), result.position());
+    }
+
+    /** Merge the sorted postings A and B in one pass.
+     * @return their postings sorted by key and then id, without
+     * duplicates.
+     */
+    private static byte[] merge(byte[] a, byte[] b) {
+        ByteBuffer x = ByteBuffer.wrap(a);
+        ByteBuffer y = ByteBuffer.wrap(b);
+        ByteBuffer result = ByteBuffer.allocate(a.length + b.length);
+        int i = 0, j = 0;
+        while (i < a.length || j < b.length) {
+            int c = i == a.length ? 1 : j == b.length ? -1
+                : compare(x, i, y, j);
+            if (c <= 0) {
+                result.put(a, i, POSTING);
+                i += POSTING;
+                if (c == 0) {
+                    j += POSTING;
+                }
+            } else {
+                result.put(b, j, POSTING);
+                j += POSTING;
+            }
+        }
+        return Arrays.copyOf(result.array(), result.position());
+    }
+
+    /** Compare the posting at byte X of A with the one at byte Y of B by
+     * key, then by id as unsigned bytes. */
+    private static int compare(ByteBuffer a, int x, ByteBuffer b, int y) {
+        int c = Long.compare(a.getLong(x), b.getLong(y));
+        for (int k = 8; c == 0 && k < POSTING; k += 1) {
+            c = (a.get(x + k) & 0xff) - (b.get(y + k) & 0xff);
+        }
+        return c;
+    }
+
+    /** Add a posting of KEY for commit ID to the KIND bucket of KEY in
+     * BUCKETS, growing it as needed. */
+    private static void post(HashMap<String, ByteBuffer> buckets,
+                             String kind, long key, byte[] id) {
+        String name = bucket(kind, key);
+        ByteBuffer buf = buckets.get(name);
+        if (buf == null || buf.remaining() < POSTING) {
+            ByteBuffer bigger = ByteBuffer.allocate(
+                buf == null ? 64 * POSTING : 2 * buf.capacity());
+            if (buf != null) {
+                bigger.put(buf.flip());
+            }
+            buf = bigger;
+            buckets.put(name, buf);
+        }
+        buf.putLong(key).put(id);
+    }
+
+    /** Get the commits with a posting of KEY in the KIND buckets, by a
+     * binary search for the first one in the mapped bucket. */
+    private static HashSet<String> postings(String kind, long key) {
+        HashSet<String> result = new HashSet<>();
+        File f = Utils.join(MESSAGE_INDEX, bucket(kind, key));
+        if (!f.exists()) {
+            return result;
+        }
+        try (FileChannel in = FileChannel.open(f.toPath())) {
+            ByteBuffer buf = in.map(FileChannel.MapMode.READ_ONLY, 0,
+                                    in.size());
+            int lo = 0;
+            int hi = buf.capacity() / POSTING;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (buf.getLong(mid * POSTING) < key) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            byte[] id = new byte[ID_BYTES];
+            for (int at = lo * POSTING; at + POSTING <= buf.capacity()
+                     && buf.getLong(at) == key; at += POSTING) {
+                buf.get(at + 8, id);
+                result.add(Utils.toHex(id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result;
+    }
+
+    /** Get the name of the KIND bucket holding postings of KEY. */
+    private static String bucket(String kind, long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return String.format("%s-%02x", kind, (int) (h >>> 56));
+    }
+
+    /** Get the exact bucket key of MESSAGE. */
+    private static long exactKey(String message) {
+        return ByteBuffer.wrap(Utils.toBytes(Utils.sha1(message))).getLong();
+    }
+
+    /** Get the gram keys of TEXT: each GRAM consecutive chars packed into a
+     * long, without duplicates. */
+    private static List<Long> grams(String text) {
+        HashSet<Long> seen = new HashSet<>();
+        ArrayList<Long> result = new ArrayList<>();
+        for (int i = 0; i + GRAM <= text.length(); i += 1) {
+            long key = 0;
+            for (int k = 0; k < GRAM; k += 1) {
+                key = (key << 16) | text.charAt(i + k);
+            }
+            if (seen.add(key)) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    /** Get the commits in the journal.
+     * @return map of sha1 name to message.
+     */
+    private static HashMap<String, String> readJournal() {
+        HashMap<String, String> result = new HashMap<>();
+        if (!JOURNAL.exists()) {
+            return result;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(JOURNAL)))) {
+            byte[] id = new byte[ID_BYTES];
+            while (true) {
+                try {
+                    in.readFully(id);
+                } catch (EOFException excp) {
+                    break;
+                }
+                byte[] message = new byte[in.readInt()];
+                in.readFully(message);
+                result.put(Utils.toHex(id),
+                           new String(message, StandardCharsets.UTF_8));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result;
+    }
+
+    /** Write a journal record of commit ID with MESSAGE to OUT. */
+    private static void writeRecord(DataOutputStream out, String id,
+                                    String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        out.write(Utils.toBytes(id));
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,139 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/** An in-process cache of objects read from the repository, evicting the
+ * least recently used entries once their total weight passes a capacity.
+ * Commits and blobs are named by their content, so their entries never
+ * go stale; COMMITS is bounded by count, and BLOBS by size in bytes.
+ * Every cache counts its hits and misses; with -Dgitlet.cacheStats=true
+ * they are printed to standard error when a command finishes.
+ * @param <V> Type of the cached objects.
+ * @author Heming Wu
+ */
+class ObjectCache<V> {
+    /** Name of the system property that turns on the statistics. */
+    static final String PROPERTY = "gitlet.cacheStats";
+
+    /** Every cache made, in order. */
+    private static final List<ObjectCache<?>> ALL = new ArrayList<>();
+
+    /** Loaded commits by sha1 name, at most 4096 of them. */
+    static final ObjectCache<Commit> COMMITS =
+        new ObjectCache<>("commits", 4096, c -> 1);
+    /** Blob contents by sha1 name, at most 32 MiB of them. */
+    static final ObjectCache<byte[]> BLOBS =
+        new ObjectCache<>("blobs", 32 << 20, b -> b.length);
+    /** Largest blob BLOBS keeps, so one large file can't flush it. */
+    static final int MAX_BLOB = 1 << 20;
+
+    /** A cache named NAME holding at most CAPACITY of total weight, as
+     * WEIGHER weighs each object. */
+    ObjectCache(String name, long capacity, ToLongFunction<V> weigher) {
+        _name = name;
+        _capacity = capacity;
+        _weigher = weigher;
+        synchronized (ALL) {
+            ALL.add(this);
+        }
+    }
+
+    /** Get the object cached under KEY, counting a hit or a miss.
+     * @param key Name of the object.
+     * @return the object, or null if it isn't cached.
+     */
+    synchronized V get(String key) {
+        V value = _entries.get(key);
+        if (value == null) {
+            _misses += 1;
+        } else {
+            _hits += 1;
+        }
+        return value;
+    }
+
+    /** Cache VALUE under KEY, evicting least recently used objects until
+     * the total weight is within capacity. An object heavier than the
+     * whole capacity isn't cached. */
+    synchronized void put(String key, V value) {
+        long weight = _weigher.applyAsLong(value);
+        if (weight > _capacity) {
+            return;
+        }
+        V old = _entries.put(key, value);
+        if (old != null) {
+            _weight -= _weigher.applyAsLong(old);
+        }
+        _weight += weight;
+        Iterator<Map.Entry<String, V>> eldest = _entries.entrySet().iterator();
+        while (_weight > _capacity) {
+            _weight -= _weigher.applyAsLong(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    /** Drop the object cached under KEY, if any. */
+    synchronized void remove(String key) {
+        V old = _entries.remove(key);
+        if (old != null) {
+            _weight -= _weigher.applyAsLong(old);
+        }
+    }
+
+    /** Drop every cached object. */
+    synchronized void clear() {
+        _entries.clear();
+        _weight = 0;
+    }
+
+    /** Get the number of lookups that found their object. */
+    synchronized long hits() {
+        return _hits;
+    }
+
+    /** Get the number of lookups that didn't. */
+    synchronized long misses() {
+        return _misses;
+    }
+
+    /** Print the counters of every cache to standard error, if the
+     * PROPERTY is set. */
+    static void report() {
+        if (!Boolean.getBoolean(PROPERTY)) {
+            return;
+        }
+        synchronized (ALL) {
+            for (ObjectCache<?> c : ALL) {
+                System.err.println(c);
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d hits, %d misses, %d entries, weight %d",
+                             _name, _hits, _misses, _entries.size(),
+                             _weight);
+    }
+
+    /** Name of the cache, for report. */
+    private final String _name;
+    /** Largest total weight of the entries. */
+    private final long _capacity;
+    /** Weighs each entry. */
+    private final ToLongFunction<V> _weigher;
+    /** Entries, least recently used first. */
+    private final LinkedHashMap<String, V> _entries =
+        new LinkedHashMap<>(16, 0.75f, true);
+    /** Total weight of the entries. */
+    private long _weight;
+    /** Number of lookups that found their object. */
+    private long _hits;
+    /** Number of lookups that didn't. */
+    private long _misses;
+}
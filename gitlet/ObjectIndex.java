@@ -0,0 +1,250 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/** A sorted table of the ids of all objects, commits and blobs, loose or
+ * packed, so that an abbreviated id can be resolved with a binary search
+ * instead of by listing the object directories.
+ *
+ * The table is MAGIC, a version int, an entry count and the entries
+ * sorted by id: 20 id bytes and the object's Pack type byte. It is
+ * memory-mapped. Objects saved since the table was written are appended
+ * to an unsorted journal, which is merged into the table once it holds
+ * MERGE entries; both are rebuilt from the object store if the table is
+ * missing.
+ * @author Heming Wu
+ */
+class ObjectIndex {
+    /** Current working directory. */
+    static final File CWD = new File(System.getProperty("user.dir"));
+    /** Location of .gitlet directory. Assume it already exists.*/
+    static final File GITLET = Utils.join(CWD, ".gitlet");
+    /** Location of the sorted table. */
+    static final File OBJECT_INDEX = Utils.join(GITLET, "ObjectIndex");
+    /** Location of the journal of recent objects. */
+    static final File JOURNAL = Utils.join(GITLET, "ObjectJournal");
+
+    /** Shortest abbreviation of an id that is resolved. */
+    static final int MIN_PREFIX = 4;
+    /** Number of journal entries that triggers a merge. */
+    static final int MERGE = 1024;
+
+    /** First bytes of the table. */
+    private static final byte[] MAGIC = {'G', 'O', 'I', 'X'};
+    /** Format version of the table. */
+    private static final int VERSION = 1;
+    /** Length of the header. */
+    private static final int HEADER = 12;
+    /** Length of an id. */
+    private static final int ID_BYTES = Utils.UID_LENGTH / 2;
+    /** Length of an entry. */
+    private static final int ENTRY = ID_BYTES + 1;
+
+    /** Add the object named SHA of type TYPE, which was just saved.
+     * @param sha Sha1 name of the object.
+     * @param type Pack.BLOB, Pack.COMMIT or Pack.TREE.
+     */
+    static synchronized void add(String sha, byte type) {
+        if (!OBJECT_INDEX.exists()) {
+            rebuild();
+            return;
+        }
+        boolean full;
+        try (FileChannel out = FileChannel.open(JOURNAL.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            ByteBuffer buf = ByteBuffer.allocate(ENTRY);
+            buf.put(Utils.toBytes(sha)).put(type).flip();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            full = out.size() >= (long) MERGE * ENTRY;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (full) {
+            merge();
+        }
+    }
+
+    /** Find the objects of type TYPE whose id starts with PREFIX.
+     * @param prefix An abbreviated id, of at least MIN_PREFIX characters.
+     * @param type Pack.BLOB, Pack.COMMIT or Pack.TREE.
+     * @return their sorted sha1 names; empty if PREFIX is too short or
+     * isn't hexadecimal.
+     */
+    static List<String> resolve(String prefix, byte type) {
+        ArrayList<String> result = new ArrayList<>();
+        prefix = prefix.toLowerCase();
+        if (prefix.length() < MIN_PREFIX
+            || prefix.length() > Utils.UID_LENGTH
+            || !prefix.matches("[0-9a-f]+")) {
+            return result;
+        }
+        if (!OBJECT_INDEX.exists()) {
+            rebuild();
+        }
+        load();
+        StringBuilder low = new StringBuilder(prefix);
+        while (low.length() < Utils.UID_LENGTH) {
+            low.append('0');
+        }
+        byte[] id = Utils.toBytes(low.toString());
+        int lo = 0;
+        int hi = _count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareAt(_table, HEADER + mid * ENTRY, id) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < _count; i += 1) {
+            String sha = idAt(_table, HEADER + i * ENTRY);
+            if (!sha.startsWith(prefix)) {
+                break;
+            }
+            if (_table.get(HEADER + i * ENTRY + ID_BYTES) == type) {
+                result.add(sha);
+            }
+        }
+        ByteBuffer journal = readJournal();
+        for (int at = 0; at + ENTRY <= journal.limit(); at += ENTRY) {
+            String sha = idAt(journal, at);
+            if (sha.startsWith(prefix) && journal.get(at + ID_BYTES) == type
+                && !result.contains(sha)) {
+                result.add(sha);
+            }
+        }
+        result.sort(null);
+        return result;
+    }
+
+    /** Rewrite the table from all objects in the object store. */
+    static void rebuild() {
+        TreeMap<String, Byte> entries = new TreeMap<>();
+        for (String id : Commit.allCommitIds()) {
+            entries.put(id, Pack.COMMIT);
+        }
+        for (byte type : new byte[] {Pack.BLOB, Pack.TREE}) {
+            for (String id : Pack.ids(type)) {
+                entries.put(id, type);
+            }
+            File dir = type == Pack.BLOB ? StagingArea.OBJECT : Tree.TREE;
+            List<String> loose = Utils.plainFilenamesIn(dir);
+            if (loose != null) {
+                for (String id : loose) {
+                    if (id.length() == Utils.UID_LENGTH) {
+                        entries.put(id, type);
+                    }
+                }
+            }
+        }
+        write(entries);
+    }
+
+    /** Merge the journal into the table. */
+    private static void merge() {
+        load();
+        TreeMap<String, Byte> entries = new TreeMap<>();
+        for (int i = 0; i < _count; i += 1) {
+            int at = HEADER + i * ENTRY;
+            entries.put(idAt(_table, at), _table.get(at + ID_BYTES));
+        }
+        ByteBuffer journal = readJournal();
+        for (int at = 0; at + ENTRY <= journal.limit(); at += ENTRY) {
+            entries.put(idAt(journal, at), journal.get(at + ID_BYTES));
+        }
+        write(entries);
+    }
+
+    /** Replace the table with ENTRIES (id to type) and empty the
+     * journal. */
+    private static void write(TreeMap<String, Byte> entries) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER
+                                             + entries.size() * ENTRY);
+        buf.put(MAGIC).putInt(VERSION).putInt(entries.size());
+        for (String id : entries.keySet()) {
+            buf.put(Utils.toBytes(id)).put(entries.get(id));
+        }
+        try {
+            File tmp = File.createTempFile("ObjectIndex", ".tmp", GITLET);
+            Files.write(tmp.toPath(), buf.array());
+            Files.move(tmp.toPath(), OBJECT_INDEX.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        JOURNAL.delete();
+        _table = null;
+    }
+
+    /** Get the contents of the journal. */
+    private static ByteBuffer readJournal() {
+        if (!JOURNAL.exists()) {
+            return ByteBuffer.allocate(0);
+        }
+        return ByteBuffer.wrap(Utils.readContents(JOURNAL));
+    }
+
+    /** Compare the id at byte AT of BUF with ID, as unsigned bytes.
+     * @return negative, zero or positive as the id in BUF is less than,
+     * equal to or greater than ID.
+     */
+    private static int compareAt(ByteBuffer buf, int at, byte[] id) {
+        for (int k = 0; k < ID_BYTES; k += 1) {
+            int c = (buf.get(at + k) & 0xff) - (id[k] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Get the id at byte AT of BUF as a sha1 name. */
+    private static String idAt(ByteBuffer buf, int at) {
+        byte[] id = new byte[ID_BYTES];
+        buf.get(at, id);
+        return Utils.toHex(id);
+    }
+
+    /** Forget the mapped table, so the next use maps it again. */
+    static synchronized void reset() {
+        _table = null;
+    }
+
+    /** Map the table, if not done yet. */
+    private static void load() {
+        if (_table != null) {
+            return;
+        }
+        try (FileChannel in = FileChannel.open(OBJECT_INDEX.toPath())) {
+            _table = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            byte[] magic = new byte[MAGIC.length];
+            _table.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC) || _table.getInt(4) != VERSION) {
+                throw Utils.error("Corrupt object index.");
+            }
+            _count = _table.getInt(8);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** The mapped table, or null if not loaded yet. */
+    private static ByteBuffer _table;
+    /** Number of entries in _table. */
+    private static int _count;
+}
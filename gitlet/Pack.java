@@ -0,0 +1,592 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+/** The pack: one append-only file holding objects that used to be loose
+ * files in the Object and Commit directories, and a sorted index from
+ * sha1 name to the object's place in the pack.
+ *
+ * The pack file is PACK_MAGIC, a version int, and then the stored bytes
+ * of each object (codec header included) one after another. The index is
+ * INDEX_MAGIC, a version int, an entry count, a 256 entry fan-out table
+ * (number of entries whose first id byte is at most i), and the entries
+ * sorted by id: 20 id bytes, a type byte, the offset and the length.
+ * The index is memory-mapped and searched with binary search, and the
+ * pack stays open, so a lookup costs no open() at all.
+ *
+ * A blob may be stored as a delta against an earlier version of the same
+ * path. Its type then has the DELTA bit set, and its stored bytes are the
+ * 20 byte id of the base followed by the compressed Delta. Delta chains
+ * are at most MAX_DEPTH long.
+ * @author Heming Wu
+ */
+class Pack {
+    /** Current working directory. */
+    static final File CWD = new File(System.getProperty("user.dir"));
+    /** Location of .gitlet directory. Assume it already exists.*/
+    static final File GITLET = Utils.join(CWD, ".gitlet");
+    /** Location of the pack file. */
+    static final File PACK = Utils.join(GITLET, "Pack");
+    /** Location of the pack index. */
+    static final File PACK_INDEX = Utils.join(GITLET, "PackIndex");
+
+    /** Type of blob objects. */
+    static final byte BLOB = 1;
+    /** Type of commit objects. */
+    static final byte COMMIT = 2;
+    /** Type of tree objects. */
+    static final byte TREE = 3;
+    /** Type bit of objects stored as a delta against a base object. */
+    static final byte DELTA = (byte) 0x80;
+    /** Longest chain of deltas to be followed to rebuild an object. */
+    static final int MAX_DEPTH = 10;
+    /** Objects larger than this are never delta encoded, so that rebuilding
+     * one never needs more memory than this (times the chain). */
+    static final int DELTA_LIMIT = 16 << 20;
+    /** Total size of the rebuilt bases kept in memory for further
+     * deltas: two of the largest. */
+    private static final int CACHE_SIZE = 2 * DELTA_LIMIT;
+
+    /** First bytes of the pack file. */
+    private static final byte[] PACK_MAGIC = {'G', 'P', 'A', 'K'};
+    /** First bytes of the index file. */
+    private static final byte[] INDEX_MAGIC = {'G', 'P', 'I', 'X'};
+    /** Format version of both files. */
+    private static final int VERSION = 1;
+    /** Length of an object id in bytes. */
+    private static final int ID_BYTES = Utils.UID_LENGTH / 2;
+    /** Start of the fan-out table in the index. */
+    private static final int FANOUT = 12;
+    /** Start of the entries in the index. */
+    private static final int ENTRIES = FANOUT + 256 * 4;
+    /** Length of an index entry. */
+    private static final int ENTRY = ID_BYTES + 1 + 8 + 8;
+
+    /** Get the original content of the packed object named SHA.
+     * @param sha Sha1 name of the object.
+     * @param type BLOB, COMMIT or TREE.
+     * @return a stream of its content, or null if no object of type TYPE
+     * is packed under that name.
+     */
+    static InputStream open(String sha, byte type) throws IOException {
+        int i = find(sha);
+        if (i < 0
+            || (_index.get(ENTRIES + i * ENTRY + ID_BYTES) & ~DELTA) != type) {
+            return null;
+        }
+        if (isDelta(i)) {
+            return new ByteArrayInputStream(rebuild(i, sha));
+        }
+        return Codec.open(region(i));
+    }
+
+    /** Copy the original content of the packed object named SHA into
+     * DEST through Codec.transfer on its region of the pack. A delta is
+     * rebuilt in memory first, which DELTA_LIMIT bounds.
+     * @param sha Sha1 name of the object.
+     * @param dest The file written to.
+     * @return false if it isn't packed.
+     */
+    static boolean transferTo(String sha, FileChannel dest)
+        throws IOException {
+        int i = find(sha);
+        if (i < 0) {
+            return false;
+        }
+        if (isDelta(i)) {
+            ByteBuffer content = ByteBuffer.wrap(rebuild(i, sha));
+            while (content.hasRemaining()) {
+                dest.write(content);
+            }
+            return true;
+        }
+        int at = ENTRIES + i * ENTRY + ID_BYTES + 1;
+        Codec.transfer(_pack, _index.getLong(at), _index.getLong(at + 8),
+                       dest);
+        return true;
+    }
+
+    /** Get the full content of the delta encoded entry I, named SHA.
+     * Bases are rebuilt through the base cache.
+     * @return the content.
+     */
+    private static byte[] rebuild(int i, String sha) throws IOException {
+        byte[] cached = BASES.get(sha);
+        if (cached != null) {
+            return cached;
+        }
+        String baseId = baseOf(i);
+        int b = find(baseId);
+        byte[] base;
+        if (isDelta(b)) {
+            base = rebuild(b, baseId);
+        } else {
+            try (InputStream in = Codec.open(region(b))) {
+                base = in.readAllBytes();
+            }
+            BASES.put(baseId, base);
+        }
+        byte[] delta;
+        try (InputStream in = region(i)) {
+            in.skipNBytes(ID_BYTES);
+            delta = Codec.open(in).readAllBytes();
+        }
+        byte[] result = Delta.apply(base, delta);
+        BASES.put(sha, result);
+        return result;
+    }
+
+    /** Get the stored bytes of entry I.
+     * @return a stream over them.
+     */
+    private static Region region(int i) {
+        int at = ENTRIES + i * ENTRY + ID_BYTES + 1;
+        return new Region(_pack, _index.getLong(at), _index.getLong(at + 8));
+    }
+
+    /** Check if entry I is stored as a delta. */
+    private static boolean isDelta(int i) {
+        return (_index.get(ENTRIES + i * ENTRY + ID_BYTES) & DELTA) != 0;
+    }
+
+    /** Get the id of the base of delta encoded entry I. */
+    private static String baseOf(int i) throws IOException {
+        byte[] id = new byte[ID_BYTES];
+        try (InputStream in = region(i)) {
+            in.readNBytes(id, 0, ID_BYTES);
+        }
+        return Utils.toHex(id);
+    }
+
+    /** Get the length of the delta chain of the object named SHA.
+     * @param sha Sha1 name of a packed object.
+     * @param written Depths of the objects packed so far in this run.
+     * @return 0 for objects stored in full.
+     */
+    private static int depth(String sha, HashMap<String, Integer> written)
+        throws IOException {
+        Integer d = written.get(sha);
+        if (d != null) {
+            return d;
+        }
+        int i = find(sha);
+        return isDelta(i) ? 1 + depth(baseOf(i), written) : 0;
+    }
+
+    /** Check if the object named SHA is packed.
+     * @param sha Sha1 name of the object.
+     * @return true if it is.
+     */
+    static boolean contains(String sha) {
+        return find(sha) >= 0;
+    }
+
+    /** Get the sha1 names of all packed objects of type TYPE, in order.
+     * @param type BLOB, COMMIT or TREE.
+     * @return the names.
+     */
+    static List<String> ids(byte type) {
+        ArrayList<String> result = new ArrayList<>();
+        load();
+        for (int i = 0; i < _count; i += 1) {
+            if ((_index.get(ENTRIES + i * ENTRY + ID_BYTES) & ~DELTA)
+                == type) {
+                result.add(idAt(i));
+            }
+        }
+        return result;
+    }
+
+    /** Move all loose blobs, trees and commits into the pack, appending them at
+     * its end, and rewrite the index to cover them. A blob whose path had
+     * an earlier version that is already packed is stored as a delta
+     * against that version, when that is smaller.
+     */
+    static void packLoose() throws IOException {
+        load();
+        ArrayList<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < _count; i += 1) {
+            int at = ENTRIES + i * ENTRY + ID_BYTES;
+            entries.add(new Entry(idAt(i), _index.get(at),
+                                  _index.getLong(at + 1),
+                                  _index.getLong(at + 9)));
+        }
+        List<File> blobs = looseFiles(StagingArea.OBJECT);
+        List<File> trees = looseFiles(Tree.TREE);
+        ArrayList<File> loose = new ArrayList<>();
+        ArrayList<Entry> added = new ArrayList<>();
+        File[] commitDirs = Commit.COMMIT.listFiles();
+        for (File dir : commitDirs == null ? new File[0] : commitDirs) {
+            loose.addAll(looseFiles(dir));
+        }
+        if (loose.isEmpty() && trees.isEmpty() && blobs.isEmpty()) {
+            return;
+        }
+        HashMap<String, String> previous = previousVersions(loose);
+        trees = looseFiles(Tree.TREE);
+        HashMap<String, Integer> written = new HashMap<>();
+        HashMap<String, Integer> order = new HashMap<>();
+        for (File f : blobs) {
+            int n = 0;
+            String id = f.getName();
+            while (n < blobs.size() && (id = previous.get(id)) != null) {
+                n += 1;
+            }
+            order.put(f.getName(), n);
+        }
+        blobs.sort(Comparator.comparing(f -> order.get(f.getName())));
+        for (File f : loose) {
+            added.add(new Entry(f.getName(), COMMIT, 0, 0));
+        }
+        for (File f : trees) {
+            added.add(new Entry(f.getName(), TREE, 0, 0));
+        }
+        for (File f : blobs) {
+            added.add(new Entry(f.getName(), BLOB, 0, 0));
+        }
+        loose.addAll(trees);
+        loose.addAll(blobs);
+        try (FileChannel out = FileChannel.open(PACK.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long end = out.size();
+            if (end == 0) {
+                ByteBuffer header = ByteBuffer.allocate(8);
+                header.put(PACK_MAGIC).putInt(VERSION).flip();
+                end += out.write(header, 0);
+            }
+            for (int i = 0; i < loose.size(); i += 1) {
+                Entry e = added.get(i);
+                if (find(e._id) >= 0) {
+                    continue;
+                }
+                File f = loose.get(i);
+                String baseId = previous.get(e._id);
+                byte[] delta = null;
+                if (baseId != null
+                    && (written.containsKey(baseId) || find(baseId) >= 0)
+                    && depth(baseId, written) < MAX_DEPTH) {
+                    delta = encodeDelta(baseId, e._id, f.length());
+                }
+                if (delta != null) {
+                    out.write(ByteBuffer.wrap(delta), end);
+                    entries.add(new Entry(e._id, (byte) (e._type | DELTA),
+                                          end, delta.length));
+                    written.put(e._id, depth(baseId, written) + 1);
+                    end += delta.length;
+                    continue;
+                }
+                try (FileChannel in = FileChannel.open(f.toPath())) {
+                    long len = in.size();
+                    long done = 0;
+                    while (done < len) {
+                        done += in.transferTo(done, len - done,
+                                              out.position(end + done));
+                    }
+                    entries.add(new Entry(e._id, e._type, end, len));
+                    written.put(e._id, 0);
+                    end += len;
+                }
+            }
+            out.force(true);
+        }
+        writeIndex(entries);
+        for (File f : loose) {
+            f.delete();
+        }
+        if (commitDirs != null) {
+            for (File dir : commitDirs) {
+                dir.delete();
+            }
+        }
+    }
+
+    /** Get the stored bytes of blob ID as a delta against blob BASEID,
+     * if they are smaller than the LOOSELENGTH bytes of the loose blob.
+     * @return the stored delta entry, or null.
+     */
+    private static byte[] encodeDelta(String baseId, String id,
+                                      long looseLength) throws IOException {
+        byte[] base, target;
+        try (InputStream in = StagingArea.getContentFromSha(baseId)) {
+            base = in.readNBytes(DELTA_LIMIT + 1);
+        }
+        try (InputStream in = StagingArea.getContentFromSha(id)) {
+            target = in.readNBytes(DELTA_LIMIT + 1);
+        }
+        if (base.length > DELTA_LIMIT || target.length > DELTA_LIMIT) {
+            return null;
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        result.write(Utils.toBytes(baseId));
+        try (OutputStream out = Codec.current().wrap(result)) {
+            out.write(Delta.create(base, target));
+        }
+        return result.size() < looseLength ? result.toByteArray() : null;
+    }
+
+    /** Map each blob to the version of the same path before it, going
+     * through the loose COMMITS, the ones being packed, from oldest to
+     * newest and comparing each with its first parent; only the subtrees
+     * that changed are read, and legacy commits get their trees saved on
+     * the way. Loose blobs only come from these commits, since everything
+     * older was packed before. The first version seen of a blob decides
+     * its base.
+     * @param commits The loose commit files.
+     * @return the map from blob id to base blob id.
+     */
+    private static HashMap<String, String> previousVersions(
+        List<File> commits) {
+        ArrayList<Commit> byTime = new ArrayList<>();
+        for (File f : commits) {
+            byTime.add(Commit.load(f.getName()));
+        }
+        byTime.sort(Comparator.comparing(Commit::getTimestamp));
+        HashMap<String, String> result = new HashMap<>();
+        for (Commit c : byTime) {
+            if (c.getParent() == null) {
+                continue;
+            }
+            Commit parent = Commit.load(c.getParent());
+            TreeMap<String, String[]> changes = new TreeMap<>();
+            Tree.diff(parent.getTree(), c.getTree(), "", changes);
+            for (String[] blobs : changes.values()) {
+                if (blobs[0] != null && blobs[1] != null) {
+                    result.putIfAbsent(blobs[1], blobs[0]);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Write ENTRIES as the new index, replacing the old one atomically. */
+    private static void writeIndex(List<Entry> entries) throws IOException {
+        Collections.sort(entries, Comparator.comparing(e -> e._id));
+        int[] fanout = new int[256];
+        for (Entry e : entries) {
+            fanout[Integer.parseInt(e._id.substring(0, 2), 16)] += 1;
+        }
+        File tmp = File.createTempFile("PackIndex", ".tmp", GITLET);
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.write(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            int total = 0;
+            for (int n : fanout) {
+                total += n;
+                out.writeInt(total);
+            }
+            for (Entry e : entries) {
+                out.write(Utils.toBytes(e._id));
+                out.writeByte(e._type);
+                out.writeLong(e._offset);
+                out.writeLong(e._length);
+            }
+        }
+        Files.move(tmp.toPath(), PACK_INDEX.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        _index = null;
+        load();
+    }
+
+    /** Get the loose object files in DIR.
+     * @param dir A directory holding loose objects.
+     * @return its files named by a full sha1.
+     */
+    private static List<File> looseFiles(File dir) {
+        ArrayList<File> result = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isFile() && f.getName().length() == Utils.UID_LENGTH) {
+                    result.add(f);
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Find the object named SHA in the index.
+     * @param sha Sha1 name of the object.
+     * @return its entry number, or -1 if it isn't there.
+     */
+    private static int find(String sha) {
+        load();
+        if (_count == 0 || sha.length() != Utils.UID_LENGTH) {
+            return -1;
+        }
+        byte[] id = Utils.toBytes(sha);
+        int first = id[0] & 0xff;
+        int lo = first == 0 ? 0 : _index.getInt(FANOUT + (first - 1) * 4);
+        int hi = _index.getInt(FANOUT + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareAt(mid, id);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Compare the id of entry I with ID, as unsigned bytes.
+     * @return negative, zero or positive as the entry's id is less than,
+     * equal to or greater than ID.
+     */
+    private static int compareAt(int i, byte[] id) {
+        int at = ENTRIES + i * ENTRY;
+        for (int k = 0; k < ID_BYTES; k += 1) {
+            int c = (_index.get(at + k) & 0xff) - (id[k] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /** Get the id of entry I as a sha1 name. */
+    private static String idAt(int i) {
+        byte[] id = new byte[ID_BYTES];
+        _index.get(ENTRIES + i * ENTRY, id);
+        return Utils.toHex(id);
+    }
+
+    /** Forget the mapped index and close the pack, so the next use
+     * opens them again. */
+    static synchronized void reset() {
+        try {
+            if (_pack != null) {
+                _pack.close();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        _pack = null;
+        _index = null;
+    }
+
+    /** Map the index and open the pack, if not done yet. */
+    private static synchronized void load() {
+        if (_index != null) {
+            return;
+        }
+        if (!PACK_INDEX.exists()) {
+            _index = ByteBuffer.allocate(0);
+            _count = 0;
+            return;
+        }
+        try (FileChannel in = FileChannel.open(PACK_INDEX.toPath())) {
+            MappedByteBuffer map =
+                in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            byte[] magic = new byte[INDEX_MAGIC.length];
+            map.get(0, magic);
+            if (!Arrays.equals(magic, INDEX_MAGIC)
+                || map.getInt(4) != VERSION) {
+                throw Utils.error("Corrupt pack index.");
+            }
+            _count = map.getInt(8);
+            _index = map;
+            if (_pack != null) {
+                _pack.close();
+            }
+            _pack = FileChannel.open(PACK.toPath());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** An index entry. */
+    private static class Entry {
+        /** An entry for object ID of type TYPE stored at OFFSET in the
+         * pack, LENGTH bytes long. */
+        Entry(String id, byte type, long offset, long length) {
+            _id = id;
+            _type = type;
+            _offset = offset;
+            _length = length;
+        }
+
+        /** Sha1 name of the object. */
+        private final String _id;
+        /** Type of the object. */
+        private final byte _type;
+        /** Offset of the object in the pack. */
+        private final long _offset;
+        /** Length of the object in the pack. */
+        private final long _length;
+    }
+
+    /** A stream over part of a file. Uses positional reads, so several
+     * regions of the same channel can be read at once. */
+    static class Region extends InputStream {
+        /** A stream over the LENGTH bytes of CHANNEL at OFFSET. */
+        Region(FileChannel channel, long offset, long length) {
+            _channel = channel;
+            _pos = offset;
+            _end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (_pos >= _end) {
+                return -1;
+            }
+            len = (int) Math.min(len, _end - _pos);
+            int n = _channel.read(ByteBuffer.wrap(b, off, len), _pos);
+            if (n > 0) {
+                _pos += n;
+            }
+            return n;
+        }
+
+        /** The file read. */
+        private final FileChannel _channel;
+        /** Position of the next byte. */
+        private long _pos;
+        /** End of the region. */
+        private final long _end;
+    }
+
+    /** Recently rebuilt delta bases, at most CACHE_SIZE bytes of them. */
+    private static final ObjectCache<byte[]> BASES =
+        new ObjectCache<>("bases", CACHE_SIZE, b -> b.length);
+
+    /** The mapped index, or null if not loaded yet. */
+    private static ByteBuffer _index;
+    /** Number of entries in the index. */
+    private static int _count;
+    /** The open pack file. */
+    private static FileChannel _pack;
+}
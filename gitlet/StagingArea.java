@@ -1,11 +1,34 @@
 package gitlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
 
-/** The staging area of current working directory.
+/** The staging area of current working directory. It lives in memory
+ * for the length of a command: the index file is read the first time it
+ * is needed, and written back once, by save, if anything changed.
+ *
+ * The index file is MAGIC, a version int, an entry count, the entries
+ * sorted by path (the path, a state byte, STAGED or REMOVED, and the 20
+ * byte blob id), and the sha1 checksum of everything before it. It is
+ * replaced atomically, so a crash leaves either the old or the new one.
  * @author Heming Wu
  * */
 public class StagingArea {
@@ -15,67 +38,66 @@ public class StagingArea {
     static final File GITLET = Utils.join(CWD, ".gitlet");
     /** Location of Object directory, containing blobs. */
     static final File OBJECT = Utils.join(GITLET, "Object");
-    /** Location of the StagingArea file (In git it's called INDEX). */
+    /** Location of the index file. */
+    static final File INDEX = Utils.join(GITLET, "Index");
+    /** Location of the serialized staged files of older repositories,
+     *  which are moved into the index. */
     static final File STAGE = Utils.join(GITLET, "StagingArea");
-    /** Location of the Unstaged Area.*/
+    /** Location of the serialized unstaged files of older repositories. */
     static final File UNSTAGE = Utils.join(GITLET, "UnstagedArea");
 
-    /** Serialize and save file of FILENAME in .gitlet/object folder.
-     *  Hash it's content to get a SHA1 code used as
-     *  the file's name.
+    /** First bytes of the index. */
+    private static final byte[] MAGIC = {'G', 'I', 'D', 'X'};
+    /** Format version of the index. */
+    private static final int VERSION = 1;
+    /** State of an entry staged for addition. */
+    private static final byte STAGED = 0;
+    /** State of an entry staged for removal. */
+    private static final byte REMOVED = 1;
+    /** Length of the checksum. */
+    private static final int CHECKSUM = Utils.UID_LENGTH / 2;
+
+    /** Save the raw content of file FILENAME in .gitlet/object folder
+     *  and stage it.
      * */
     public static void saveFile(String filename) throws IOException {
-        if (getUnStaged().containsKey(filename)) {
-            File oriPath = Utils.join(CWD, filename);
-            String blobID = getUnStaged().get(filename);
-            String content = getContentFromSha(blobID);
-            Utils.writeObject(oriPath, content);
-        }
-        Blob b = new Blob(filename);
-        OBJECT.mkdir();
-        String shaName = Utils.sha1(b.getContent());
-        File newFile = Utils.join(OBJECT, shaName);
-        newFile.createNewFile();
-        Utils.writeContents(newFile, b.getSerialized());
-        if (!STAGE.exists()) {
-            _stagedFile.put(filename, shaName);
-            _trackedFile.put(filename, shaName);
-            persistence();
-        } else {
-            _stagedFile = getStagedFile();
-            _stagedFile.put(filename, shaName);
-            _trackedFile.put(filename, shaName);
-            persistence();
-        }
+        stage(filename, new Blob(filename).save());
     }
 
-    /** Check if content in file f is the same as in the latest commit. */
-    static boolean checkUnchangedContent(File f) throws Exception {
-        if (!Commit.existPreviousCommit()) {
-            return false;
-        }
-        String fContent = Utils.readContentsAsString(f);
-        Commit cCommit = Branch.getCurrentCommit();
-        if (cCommit.getContent().keySet().contains(f.getName())) {
-            String oldContent = cCommit.getFileContent(f.getName());
+    /** Stage the file FILENAME, whose content is the blob SHA. */
+    static void stage(String filename, String sha) {
+        load();
+        _stagedFile.put(filename, sha);
+        _unStagedFile.remove(filename);
+        _dirty = true;
+    }
 
-            if (oldContent.equals(fContent)) {
-                return true;
-            }
+    /** Take the file FILENAME out of the staging area, whether it was
+     *  staged for addition or for removal. */
+    static void drop(String filename) {
+        load();
+        if (_stagedFile.remove(filename) != null
+            | _unStagedFile.remove(filename) != null) {
+            _dirty = true;
         }
-        return false;
     }
 
-    /** Get staged files by fetching from the serialized file.
-     * @return The staged file, which is previously persisted.
+    /** Check if content in file FILENAME is the same as in the latest
+     *  commit. Compares blob hashes, so neither version is read into
+     *  memory, and the working file is only re-hashed if the StatCache
+     *  says it changed. */
+    static boolean checkUnchangedContent(String filename) throws Exception {
+        Commit cCommit = Branch.getCurrentCommit();
+        String oldSha = cCommit.getBlob(filename);
+        return oldSha != null && oldSha.equals(StatCache.hash(filename));
+    }
+
+    /** Get staged files.
+     * @return Unmodifiable map of file names to their sha1 names.
      * */
-    @SuppressWarnings("unchecked")
-    public static  HashMap<String, String> getStagedFile() throws IOException {
-        if (!STAGE.exists()) {
-            return null;
-        }
-        _stagedFile = Utils.readObject(STAGE, HashMap.class);
-        return _stagedFile;
+    public static Map<String, String> getStagedFile() {
+        load();
+        return Collections.unmodifiableMap(_stagedFile);
     }
 
     /** Put the file named FILENAME to the unstaged area,
@@ -83,75 +105,224 @@ public class StagingArea {
      * @param filename The file that's to be unstaged.
      * @param blobPath Sha1 Name of the file.
      */
-    @SuppressWarnings("unchecked")
     public static void unstage(String filename, String blobPath) {
+        load();
+        _stagedFile.remove(filename);
         _unStagedFile.put(filename, blobPath);
-        persistence();
-    }
-
-    /** Serialize _stageFile.
-     */
-    public static void persistence() {
-        Utils.writeObject(STAGE, _stagedFile);
-        Utils.writeObject(UNSTAGE, _unStagedFile);
+        _dirty = true;
     }
 
     /** Clear staging area. */
     public static void clear() {
+        load();
         _stagedFile.clear();
         _unStagedFile.clear();
-        persistence();
+        _dirty = true;
     }
 
     /** Check if there's file in staging area.
      * @return boolean value.
      */
-    public static boolean hasStagedFile() throws IOException {
-        if (!STAGE.exists() && !UNSTAGE.exists()) {
-            return false;
+    public static boolean hasStagedFile() {
+        load();
+        return !_stagedFile.isEmpty();
+    }
+
+    /** Forget the staging area read from disk and any unsaved changes,
+     *  so the next use reads the index again. */
+    static void reset() {
+        _stagedFile.clear();
+        _unStagedFile.clear();
+        _loaded = false;
+        _dirty = false;
+    }
+
+    /** Write the index back to disk if it changed, replacing the old
+     *  one atomically. */
+    static void save() {
+        if (!_dirty || !GITLET.exists()) {
+            return;
+        }
+        TreeMap<String, byte[]> entries = new TreeMap<>();
+        for (Map.Entry<String, String> e : _stagedFile.entrySet()) {
+            entries.put(e.getKey(), entry(STAGED, e.getValue()));
         }
-        return getStagedFile().size() != 0;
+        for (Map.Entry<String, String> e : _unStagedFile.entrySet()) {
+            entries.put(e.getKey(), entry(REMOVED, e.getValue()));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.write(e.getValue());
+            }
+            out.write(checksum(bytes.toByteArray(), bytes.size()));
+            File tmp = File.createTempFile("Index", ".tmp", GITLET);
+            Files.write(tmp.toPath(), bytes.toByteArray());
+            Files.move(tmp.toPath(), INDEX.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        STAGE.delete();
+        UNSTAGE.delete();
+        _dirty = false;
     }
 
-    /** Get back the content from serialized file with name SHA.
-     * @return original content of the file with name SHA
-     */
-    public static String getContentFromSha(String sha) {
-        File target = Utils.join(OBJECT, sha);
-        String result = Utils.readObject(target, String.class);
+    /** Get the bytes of an index entry after its path: STATE and the
+     *  blob SHA. */
+    private static byte[] entry(byte state, String sha) {
+        byte[] result = new byte[1 + CHECKSUM];
+        result[0] = state;
+        System.arraycopy(Utils.toBytes(sha), 0, result, 1, CHECKSUM);
         return result;
     }
 
-    /** Get the set of unstaged files. Return null if area not initialized.
-     * @return The set of unstaged files.
-     */
+    /** Get the sha1 checksum of the first LENGTH bytes of BYTES. */
+    private static byte[] checksum(byte[] bytes, int length) {
+        MessageDigest md = Utils.Hash.SHA1.digest();
+        md.update(bytes, 0, length);
+        return md.digest();
+    }
+
+    /** Read the index from disk, if not done yet. A repository made
+     *  before the index existed has its serialized staging area read
+     *  instead, and converted on the next save. */
     @SuppressWarnings("unchecked")
-    public static HashMap<String, String> getUnStaged() {
-        if (!UNSTAGE.exists()) {
-            return null;
+    private static void load() {
+        if (_loaded) {
+            return;
+        }
+        _loaded = true;
+        if (!INDEX.exists()) {
+            if (STAGE.length() > 0) {
+                _stagedFile.putAll(Utils.readObject(STAGE, HashMap.class));
+                _dirty = true;
+            }
+            if (UNSTAGE.length() > 0) {
+                _unStagedFile.putAll(Utils.readObject(UNSTAGE, HashMap.class));
+                _dirty = true;
+            }
+            return;
+        }
+        byte[] bytes = Utils.readContents(INDEX);
+        int length = bytes.length - CHECKSUM;
+        if (length < 0 || !Arrays.equals(checksum(bytes, length),
+                Arrays.copyOfRange(bytes, length, bytes.length))) {
+            throw Utils.error("Corrupt index.");
+        }
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(bytes, 0, length))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                throw Utils.error("Corrupt index.");
+            }
+            int count = in.readInt();
+            byte[] sha = new byte[CHECKSUM];
+            for (int i = 0; i < count; i += 1) {
+                String path = in.readUTF();
+                byte state = in.readByte();
+                in.readFully(sha);
+                if (state == STAGED) {
+                    _stagedFile.put(path, Utils.toHex(sha));
+                } else {
+                    _unStagedFile.put(path, Utils.toHex(sha));
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        _unStagedFile = Utils.readObject(UNSTAGE, HashMap.class);
-        return _unStagedFile;
     }
 
-    /** Get all tracked files.
-     * @return ALl tracked files.
-     * */
-    public static HashMap<String, String> getAllTrackedFile() {
-        return _trackedFile;
+    /** Open the content of the blob with name SHA for streaming,
+     *  decompressing it on the way. ObjectCache.BLOBS is looked up
+     *  first, then loose blobs, then the pack. A blob of at most
+     *  ObjectCache.MAX_BLOB bytes is read whole and cached; a larger one
+     *  is streamed.
+     * @return a stream over the original content of the file.
+     */
+    public static InputStream getContentFromSha(String sha)
+        throws IOException {
+        byte[] cached = ObjectCache.BLOBS.get(sha);
+        if (cached != null) {
+            return new ByteArrayInputStream(cached);
+        }
+        File loose = Utils.join(OBJECT, sha);
+        InputStream in = null;
+        if (!loose.exists()) {
+            in = Pack.open(sha, Pack.BLOB);
+        }
+        if (in == null) {
+            in = Codec.open(new FileInputStream(loose));
+        }
+        byte[] head = in.readNBytes(ObjectCache.MAX_BLOB + 1);
+        if (head.length > ObjectCache.MAX_BLOB) {
+            return new SequenceInputStream(new ByteArrayInputStream(head), in);
+        }
+        in.close();
+        ObjectCache.BLOBS.put(sha, head);
+        return new ByteArrayInputStream(head);
     }
 
-    /** Files that just got staged in the staging area.
-     *  keys are file names, values are sha1 name. */
-    private static HashMap<String, String> _stagedFile = new HashMap<>();
+    /** Copy the content of the blob with name SHA into file TARGET,
+     *  creating or replacing it. The stored object is opened first and
+     *  copied into a temporary file (see Codec.transfer), which then
+     *  replaces TARGET, so a missing or corrupt object leaves TARGET as
+     *  it was.
+     */
+    public static void writeContentFromSha(String sha, File target) {
+        File loose = Utils.join(OBJECT, sha);
+        File tmp = null;
+        try (FileChannel in = loose.exists()
+                 ? FileChannel.open(loose.toPath()) : null) {
+            if (in == null && !Pack.contains(sha)) {
+                throw new NoSuchFileException(loose.getPath());
+            }
+            tmp = File.createTempFile("Content", ".tmp", GITLET);
+            try (FileChannel out = FileChannel.open(tmp.toPath(),
+                    StandardOpenOption.WRITE)) {
+                if (in != null) {
+                    Codec.transfer(in, 0, in.size(), out);
+                } else if (!Pack.transferTo(sha, out)) {
+                    throw new NoSuchFileException(loose.getPath());
+                }
+            }
+            Files.move(tmp.toPath(), target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
 
-    /** Unstaged files. Contains only the original name of the files. */
-    private static HashMap _unStagedFile = new HashMap<>();
+    /** Get the set of unstaged files.
+     * @return Unmodifiable map of the files to be removed to their sha1
+     * names in the current commit.
+     */
+    public static Map<String, String> getUnStaged() {
+        load();
+        return Collections.unmodifiableMap(_unStagedFile);
+    }
 
-    /** All files that are tracked, using sha1 name.
+    /** Files that just got staged in the staging area.
      *  keys are file names, values are sha1 name. */
-    private static  HashMap<String, String> _trackedFile = new HashMap<>();
-
+    private static TreeMap<String, String> _stagedFile = new TreeMap<>();
 
+    /** Unstaged files. Keys are file names, values are the sha1 names
+     *  they had in the current commit. */
+    private static TreeMap<String, String> _unStagedFile = new TreeMap<>();
 
+    /** True once the index has been read from disk. */
+    private static boolean _loaded;
+    /** True if the staging area differs from the index on disk. */
+    private static boolean _dirty;
 }
@@ -0,0 +1,243 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/** A cache of the blob hash of each working file, keyed by its stat data
+ * (size, modification time and inode), like the stat part of git's index.
+ * As long as a file's stat data doesn't change, its hash is taken from
+ * here instead of being recomputed from the content.
+ *
+ * The file is MAGIC, a version int, an entry count, and the entries
+ * sorted by path. An entry whose modification time is not before the
+ * modification time of the cache file itself is "racy": the file could
+ * have changed again within the same tick of the filesystem's clock, so
+ * it is always re-hashed. Both times come from the same filesystem, so
+ * this holds however coarse its timestamps are. Entries that are racy
+ * when the cache is written are left out of it.
+ * @author Heming Wu
+ */
+class StatCache {
+    /** Current working directory. */
+    static final File CWD = new File(System.getProperty("user.dir"));
+    /** Location of .gitlet directory. Assume it already exists.*/
+    static final File GITLET = Utils.join(CWD, ".gitlet");
+    /** Location of the stat cache. */
+    static final File STAT_CACHE = Utils.join(GITLET, "StatCache");
+
+    /** First bytes of the stat cache. */
+    private static final byte[] MAGIC = {'G', 'S', 'T', 'C'};
+    /** Format version of the stat cache. */
+    private static final int VERSION = 2;
+
+    /** Get the blob hash of the working file PATH, re-hashing it only if
+     * its stat data changed since it was last hashed.
+     * @param path Name of the file relative to the working directory.
+     * @return the sha1 name its blob has.
+     */
+    static String hash(String path) {
+        load();
+        File file = Utils.join(CWD, path);
+        Entry stat = stat(file);
+        Entry cached;
+        synchronized (ENTRIES) {
+            cached = ENTRIES.get(path);
+        }
+        if (cached != null && cached.sameStat(stat)
+            && cached._mtime < _writtenAt) {
+            return cached._sha;
+        }
+        stat._sha = Blob.hash(file);
+        put(path, stat);
+        return stat._sha;
+    }
+
+    /** Get the stat data of the working file PATH, to be taken before
+     * its content is read and then passed to record.
+     * @param path Name of the file relative to the working directory.
+     * @return its stat data, with no hash yet.
+     */
+    static Entry stat(String path) {
+        return stat(Utils.join(CWD, path));
+    }
+
+    /** Record that the working file PATH, whose stat data was STAT before
+     * it was read, has just been hashed to SHA, e.g. while saving it as a
+     * blob. A change made while it was read changes its stat data, or
+     * leaves the entry racy, so it's not taken for the recorded content.
+     * @param path Name of the file relative to the working directory.
+     * @param stat Its stat data from stat, taken before reading it.
+     * @param sha Sha1 name of the content read.
+     */
+    static void record(String path, Entry stat, String sha) {
+        load();
+        stat._sha = sha;
+        put(path, stat);
+    }
+
+    /** Write the cache back to disk if it changed, replacing the old
+     * one atomically. */
+    static void save() {
+        if (!_dirty || !GITLET.exists()) {
+            return;
+        }
+        try {
+            File tmp = File.createTempFile("StatCache", ".tmp", GITLET);
+            long start = stat(tmp)._mtime;
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                synchronized (ENTRIES) {
+                    ENTRIES.values().removeIf(v -> v._mtime >= start);
+                    out.writeInt(ENTRIES.size());
+                    for (Map.Entry<String, Entry> e : ENTRIES.entrySet()) {
+                        Entry v = e.getValue();
+                        out.writeUTF(e.getKey());
+                        out.writeLong(v._size);
+                        out.writeLong(v._mtime);
+                        out.writeLong(v._inode);
+                        out.write(Utils.toBytes(v._sha));
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), STAT_CACHE.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            _writtenAt = stat(STAT_CACHE)._mtime;
+            _dirty = false;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Forget the cache read from disk and any unsaved entries, so the
+     * next use reads it again. */
+    static synchronized void reset() {
+        synchronized (ENTRIES) {
+            ENTRIES.clear();
+        }
+        _writtenAt = 0;
+        _loaded = false;
+        _dirty = false;
+    }
+
+    /** Put entry E for PATH. */
+    private static void put(String path, Entry e) {
+        synchronized (ENTRIES) {
+            ENTRIES.put(path, e);
+            _dirty = true;
+        }
+    }
+
+    /** Get the stat data of FILE, with no hash yet. */
+    private static Entry stat(File file) {
+        Path p = file.toPath();
+        try {
+            Map<String, Object> attrs =
+                Files.readAttributes(p, "unix:size,lastModifiedTime,ino");
+            return new Entry((Long) attrs.get("size"),
+                             ((FileTime) attrs.get("lastModifiedTime"))
+                             .to(TimeUnit.NANOSECONDS),
+                             (Long) attrs.get("ino"));
+        } catch (UnsupportedOperationException | IllegalArgumentException
+                 | IOException excp) {
+            try {
+                BasicFileAttributes attrs =
+                    Files.readAttributes(p, BasicFileAttributes.class);
+                Object key = attrs.fileKey();
+                return new Entry(attrs.size(),
+                                 attrs.lastModifiedTime()
+                                 .to(TimeUnit.NANOSECONDS),
+                                 key == null ? 0 : key.hashCode());
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e.getMessage());
+            }
+        }
+    }
+
+    /** Read the cache from disk, if not done yet, leaving out its racy
+     * entries. A missing or unreadable cache is just empty. */
+    private static synchronized void load() {
+        if (_loaded) {
+            return;
+        }
+        _loaded = true;
+        if (!STAT_CACHE.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(STAT_CACHE)))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                return;
+            }
+            _writtenAt = stat(STAT_CACHE)._mtime;
+            int count = in.readInt();
+            byte[] sha = new byte[Utils.UID_LENGTH / 2];
+            for (int i = 0; i < count; i += 1) {
+                String path = in.readUTF();
+                Entry e = new Entry(in.readLong(), in.readLong(),
+                                    in.readLong());
+                in.readFully(sha);
+                e._sha = Utils.toHex(sha);
+                if (e._mtime < _writtenAt) {
+                    ENTRIES.put(path, e);
+                }
+            }
+        } catch (IOException excp) {
+            ENTRIES.clear();
+            _writtenAt = 0;
+        }
+    }
+
+    /** The stat data and hash of one file. */
+    static class Entry {
+        /** Stat data SIZE, MTIME and INODE. */
+        Entry(long size, long mtime, long inode) {
+            _size = size;
+            _mtime = mtime;
+            _inode = inode;
+        }
+
+        /** Check if OTHER has the same stat data as this. */
+        boolean sameStat(Entry other) {
+            return _size == other._size && _mtime == other._mtime
+                && _inode == other._inode;
+        }
+
+        /** Size of the file. */
+        private final long _size;
+        /** Modification time of the file, in nanoseconds. */
+        private final long _mtime;
+        /** Inode of the file (or another identity of it). */
+        private final long _inode;
+        /** Sha1 name of the file's content. */
+        private String _sha;
+    }
+
+    /** Entries by path. */
+    private static final TreeMap<String, Entry> ENTRIES = new TreeMap<>();
+    /** Modification time of the cache file, in nanoseconds. */
+    private static long _writtenAt;
+    /** True once the cache has been read from disk. */
+    private static boolean _loaded;
+    /** True if ENTRIES differs from the cache on disk. */
+    private static boolean _dirty;
+}
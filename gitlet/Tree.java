@@ -0,0 +1,234 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** A tree object: the files and subdirectories of one directory of a
+ * commit. Like blobs, trees are named by the sha1 of their content, so a
+ * directory that didn't change between two commits is the same tree, and
+ * a commit only writes the trees along the paths it changed.
+ *
+ * The content is one line per entry, sorted by name: the sha1 name of
+ * the entry, a space, and its name. The name of a subdirectory ends with
+ * '/' and names a tree; any other name names a blob. Loose trees are
+ * stored, compressed with the current Codec, in the Tree directory.
+ * @author Heming Wu
+ */
+class Tree {
+    /** Current working directory. */
+    static final File CWD = new File(System.getProperty("user.dir"));
+    /** Location of .gitlet directory. Assume it already exists.*/
+    static final File GITLET = Utils.join(CWD, ".gitlet");
+    /** Location of the loose trees. */
+    static final File TREE = Utils.join(GITLET, "Tree");
+
+    /** An empty tree. */
+    Tree() {
+        _entries = new TreeMap<>();
+    }
+
+    /** Get the tree named SHA, loose or packed.
+     * @param sha Sha1 name of a tree.
+     * @return the tree.
+     */
+    static Tree read(String sha) {
+        File loose = Utils.join(TREE, sha);
+        try (InputStream in = loose.exists()
+                 ? Codec.open(new FileInputStream(loose))
+                 : Pack.open(sha, Pack.TREE)) {
+            if (in == null) {
+                throw Utils.error("Missing tree %s.", sha);
+            }
+            Tree result = new Tree();
+            String content = new String(in.readAllBytes(),
+                                        StandardCharsets.UTF_8);
+            int start = 0;
+            while (start < content.length()) {
+                int end = content.indexOf('\n', start);
+                result._entries.put(
+                    content.substring(start + Utils.UID_LENGTH + 1, end),
+                    content.substring(start, start + Utils.UID_LENGTH));
+                start = end + 1;
+            }
+            return result;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Apply CHANGES to the tree named ROOT, writing the trees that
+     * change and sharing the rest.
+     * @param root Sha1 name of the tree changed, or null for an empty
+     * tree.
+     * @param changes Map of paths (relative to ROOT, with '/' separators)
+     * to the sha1 name of their new blob, or to null to remove them.
+     * @return the sha1 name of the changed tree.
+     */
+    static String update(String root, Map<String, String> changes) {
+        return update(root, changes, true);
+    }
+
+    /** Apply CHANGES to the tree named SHA (null if empty), as for the
+     * public update. If TOP is false, an empty result is not written.
+     * @return the sha1 name of the changed tree, or null if it's empty
+     * and not TOP.
+     */
+    private static String update(String sha, Map<String, String> changes,
+                                 boolean top) {
+        if (changes.isEmpty() && sha != null) {
+            return sha;
+        }
+        Tree tree = sha == null ? new Tree() : read(sha);
+        TreeMap<String, TreeMap<String, String>> subdirs = new TreeMap<>();
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            String path = e.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (e.getValue() == null) {
+                    tree._entries.remove(path);
+                } else {
+                    tree._entries.put(path, e.getValue());
+                }
+            } else {
+                subdirs.computeIfAbsent(path.substring(0, slash + 1),
+                                        k -> new TreeMap<>())
+                    .put(path.substring(slash + 1), e.getValue());
+            }
+        }
+        for (Map.Entry<String, TreeMap<String, String>> e
+                 : subdirs.entrySet()) {
+            String child = update(tree._entries.get(e.getKey()),
+                                  e.getValue(), false);
+            if (child == null) {
+                tree._entries.remove(e.getKey());
+            } else {
+                tree._entries.put(e.getKey(), child);
+            }
+        }
+        if (tree._entries.isEmpty() && !top) {
+            return null;
+        }
+        return tree.save();
+    }
+
+    /** Get the blob of PATH in the tree named ROOT.
+     * @param root Sha1 name of a tree.
+     * @param path A file's path relative to ROOT.
+     * @return the sha1 name of its blob, or null if there's no such file.
+     */
+    static String blobOf(String root, String path) {
+        String sha = root;
+        int start = 0;
+        int slash;
+        while ((slash = path.indexOf('/', start)) >= 0) {
+            sha = read(sha)._entries.get(path.substring(start, slash + 1));
+            if (sha == null) {
+                return null;
+            }
+            start = slash + 1;
+        }
+        return read(sha)._entries.get(path.substring(start));
+    }
+
+    /** Compare the trees named A and B, skipping every entry, file or
+     * subtree, that has the same sha1 name in both.
+     * @param a Sha1 name of a tree, or null for an empty tree.
+     * @param b Sha1 name of a tree, or null for an empty tree.
+     * @param prefix Path of both trees' directory, ending in '/' unless
+     * empty.
+     * @param changes Where each file that differs is put, mapping its path
+     * to its blob in A and its blob in B (either null if it's missing).
+     */
+    static void diff(String a, String b, String prefix,
+                     Map<String, String[]> changes) {
+        if (a != null && a.equals(b)) {
+            return;
+        }
+        TreeMap<String, String> inA = a == null ? new TreeMap<>()
+            : read(a)._entries;
+        TreeMap<String, String> inB = b == null ? new TreeMap<>()
+            : read(b)._entries;
+        TreeSet<String> names = new TreeSet<>(inA.keySet());
+        names.addAll(inB.keySet());
+        for (String name : names) {
+            String shaA = inA.get(name);
+            String shaB = inB.get(name);
+            if (shaA != null && shaA.equals(shaB)) {
+                continue;
+            }
+            if (name.endsWith("/")) {
+                diff(shaA, shaB, prefix + name, changes);
+            } else {
+                changes.put(prefix + name, new String[] {shaA, shaB});
+            }
+        }
+    }
+
+    /** Put every file of the tree named ROOT into FILES, mapping its path
+     * (after PREFIX) to its blob.
+     * @param root Sha1 name of a tree.
+     * @param prefix Path of the tree's directory, ending in '/' unless
+     * empty.
+     * @param files Where the files are put.
+     */
+    static void flatten(String root, String prefix,
+                        Map<String, String> files) {
+        for (Map.Entry<String, String> e : read(root)._entries.entrySet()) {
+            String name = e.getKey();
+            if (name.endsWith("/")) {
+                flatten(e.getValue(), prefix + name, files);
+            } else {
+                files.put(prefix + name, e.getValue());
+            }
+        }
+    }
+
+    /** Write this tree as a loose object, unless it already exists. It
+     * is written to a temporary file first, so a crash never leaves a
+     * truncated object under its name.
+     * @return its sha1 name.
+     */
+    private String save() {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> e : _entries.entrySet()) {
+            content.writeBytes((e.getValue() + " " + e.getKey() + "\n")
+                               .getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] bytes = content.toByteArray();
+        String sha = Utils.sha1(bytes);
+        File target = Utils.join(TREE, sha);
+        if (target.exists() || Pack.contains(sha)) {
+            return sha;
+        }
+        TREE.mkdir();
+        try {
+            File tmp = File.createTempFile("tree", ".tmp", TREE);
+            try (OutputStream out =
+                     Codec.current().wrap(new FileOutputStream(tmp))) {
+                out.write(bytes);
+            }
+            Files.move(tmp.toPath(), target.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        ObjectIndex.add(sha, Pack.TREE);
+        return sha;
+    }
+
+    /** Entries by name: blob names for files, tree names for
+     * subdirectories (whose names end with '/'). */
+    private final TreeMap<String, String> _entries;
+}
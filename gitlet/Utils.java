@@ -6,16 +6,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Formatter;
 import java.util.List;
 
 
@@ -29,28 +32,74 @@ class Utils {
     /** The length of a complete SHA-1 UID as a hexadecimal numeral. */
     static final int UID_LENGTH = 40;
 
+    /** Hash functions.  Every object in a repository is named by its
+     *  SHA1 hash (all on-disk formats hold 20 byte ids); SHA256 is there
+     *  for callers that choose their own, and to be measured against it.
+     *  Each thread keeps one MessageDigest per function, so hashing many
+     *  files at once neither allocates nor contends. */
+    enum Hash {
+        /** SHA-1, 20 bytes. */
+        SHA1("SHA-1"),
+        /** SHA-256, 32 bytes. */
+        SHA256("SHA-256");
+
+        /** A hash function named ALGORITHM in java.security. */
+        Hash(String algorithm) {
+            _digests = ThreadLocal.withInitial(() -> {
+                try {
+                    return MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException excp) {
+                    throw new IllegalArgumentException("System does not"
+                                                       + " support "
+                                                       + algorithm);
+                }
+            });
+        }
+
+        /** Returns this thread's digest, reset. */
+        MessageDigest digest() {
+            MessageDigest md = _digests.get();
+            md.reset();
+            return md;
+        }
+
+        /** Returns the hash of the remaining bytes of BUF, as a
+         *  hexadecimal numeral.  Consumes them. */
+        String hash(ByteBuffer buf) {
+            MessageDigest md = digest();
+            md.update(buf);
+            return hex(md);
+        }
+
+        /** Returns the hash of everything in CHANNEL, as a hexadecimal
+         *  numeral, read through this thread's buffer. */
+        String hash(FileChannel channel) throws IOException {
+            MessageDigest md = digest();
+            ByteBuffer buf = BUFFERS.get();
+            while (channel.read(buf.clear()) > 0) {
+                md.update(buf.flip());
+            }
+            return hex(md);
+        }
+
+        /** This function's digest in each thread. */
+        private final ThreadLocal<MessageDigest> _digests;
+    }
+
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
      *  be any mixture of byte arrays and Strings. */
     static String sha1(Object... vals) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            for (Object val : vals) {
-                if (val instanceof byte[]) {
-                    md.update((byte[]) val);
-                } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
-                } else {
-                    throw new IllegalArgumentException("improper type to sha1");
-                }
-            }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+        MessageDigest md = Hash.SHA1.digest();
+        for (Object val : vals) {
+            if (val instanceof byte[]) {
+                md.update((byte[]) val);
+            } else if (val instanceof String) {
+                md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+            } else {
+                throw new IllegalArgumentException("improper type to sha1");
             }
-            return result.toString();
-        } catch (NoSuchAlgorithmException excp) {
-            throw new IllegalArgumentException("System does not support SHA-1");
         }
+        return hex(md);
     }
 
     /** Returns the SHA-1 hash of the concatenation of the strings in
@@ -59,6 +108,33 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Returns the bytes of the hexadecimal numeral HEX, two digits per
+     *  byte. */
+    static byte[] toBytes(String hex) {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) Integer.parseInt(hex.substring(2 * i,
+                                                              2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    /** Returns BYTES as a hexadecimal numeral, two digits per byte. */
+    static String toHex(byte[] bytes) {
+        StringBuilder result = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+    /** Returns the SHA-1 hash of DIGEST's current state as a hexadecimal
+     *  numeral. */
+    static String hex(MessageDigest digest) {
+        return toHex(digest.digest());
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -84,6 +160,18 @@ class Utils {
         return restrictedDelete(new File(file));
     }
 
+    /** Deletes FILE and, if it is a directory, everything in it.  Unlike
+     *  restrictedDelete, this is only meant for files inside .gitlet. */
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File f : children) {
+                deleteRecursively(f);
+            }
+        }
+        file.delete();
+    }
+
     /* READING AND WRITING FILE CONTENTS */
 
     /** Return the entire contents of FILE as a byte array.  FILE must
@@ -132,16 +220,58 @@ class Utils {
         }
     }
 
+    /** Size of the buffers used to stream file contents. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /** Each thread's buffer for streaming file contents. */
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE));
+
+    /** Copy everything in IN to OUT in BUFFER_SIZE chunks, and return the
+     *  SHA-1 hash of the bytes copied.  OUT may be null, in which case the
+     *  bytes are only hashed.  Neither stream is closed. */
+    static String copyAndHash(InputStream in, OutputStream out)
+        throws IOException {
+        MessageDigest md = Hash.SHA1.digest();
+        byte[] buf = BUFFERS.get().array();
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            md.update(buf, 0, n);
+            if (out != null) {
+                out.write(buf, 0, n);
+            }
+        }
+        return hex(md);
+    }
+
+    /** Copy everything in IN to OUT in BUFFER_SIZE chunks.  Neither stream
+     *  is closed. */
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+    }
+
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
                                                  Class<T> expectedClass) {
         try {
-            ObjectInputStream in =
-                new ObjectInputStream(new FileInputStream(file));
-            T result = expectedClass.cast(in.readObject());
-            in.close();
-            return result;
+            return readObject(new FileInputStream(file), expectedClass);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return an object of type T read from STREAM, casting it to
+     *  EXPECTEDCLASS, and close STREAM.  Throws IllegalArgumentException
+     *  in case of problems. */
+    static <T extends Serializable> T readObject(InputStream stream,
+                                                 Class<T> expectedClass) {
+        try (ObjectInputStream in = new ObjectInputStream(stream)) {
+            return expectedClass.cast(in.readObject());
         } catch (IOException | ClassCastException
                  | ClassNotFoundException excp) {
             throw new IllegalArgumentException(excp.getMessage());
@@ -0,0 +1,360 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/** A scan of the files in the working directory. Directories are walked
+ * and files are hashed in parallel on a ForkJoinPool: every directory is
+ * a task, and its files are hashed in chunks of CHUNK files per task.
+ * Also writes sets of files into the working directory, in parallel too.
+ * @author Heming Wu
+ */
+class WorkingTree {
+    /** Current working directory. */
+    static final File CWD = new File(System.getProperty("user.dir"));
+    /** Location of .gitlet directory. Assume it already exists.*/
+    static final File GITLET = Utils.join(CWD, ".gitlet");
+    /** Where apply puts new file contents before moving them in place. */
+    static final File PENDING = Utils.join(GITLET, "Pending");
+    /** Number of files apply writes at once. Writing is mostly waiting
+     * on the disk, so this is more than the number of cores. */
+    static final int WRITERS =
+        Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+    /** Value of files in a scan that were not hashed. */
+    static final String UNHASHED = "";
+    /** Number of files hashed by one task. */
+    private static final int CHUNK = 32;
+
+    /** Scan the working directory, leaving out .gitlet.
+     * @param hashed Which paths need their blob hash; the others are only
+     * listed. Hashes come from the StatCache.
+     * @return map of every working file's path (relative to the working
+     * directory, with '/' separators) to its hash or UNHASHED.
+     */
+    static TreeMap<String, String> scan(Predicate<String> hashed) {
+        return scan(CWD, ForkJoinPool.commonPool(), hashed, true);
+    }
+
+    /** Scan the directory ROOT on POOL, leaving out .gitlet.
+     * @param root The directory scanned.
+     * @param pool Where the scan runs.
+     * @param hashed Which paths need their blob hash.
+     * @param cached Whether to take hashes from the StatCache (only
+     * possible when ROOT is the working directory) or always compute them.
+     * @return map of every file's path under ROOT to its hash or UNHASHED.
+     */
+    static TreeMap<String, String> scan(File root, ForkJoinPool pool,
+                                        Predicate<String> hashed,
+                                        boolean cached) {
+        ConcurrentHashMap<String, String> result = new ConcurrentHashMap<>();
+        pool.invoke(new DirTask(root, "", hashed, cached, result));
+        return new TreeMap<>(result);
+    }
+
+    /** Change the working directory by CHANGES, all or nothing. First
+     * every new content is decompressed from its blob into a file in
+     * PENDING, WRITERS files at a time. If any of that fails, nothing in
+     * the working directory has changed yet; the failure of the first
+     * path in order is reported. Otherwise the deleted files are moved
+     * into PENDING and the directories they leave empty removed, which
+     * clears the way for a file that replaces a directory or the other
+     * way round, and then the new files are moved into place, each
+     * replaced file going to PENDING first. Every step is a rename, so
+     * if one fails, those done are undone in reverse order.
+     * @param changes Map of paths to their new blob, or to null to delete
+     * the file.
+     */
+    static void apply(Map<String, String> changes) {
+        apply(changes, WRITERS);
+    }
+
+    /** Change the working directory by CHANGES as apply does, writing
+     * THREADS files at once. */
+    static void apply(Map<String, String> changes, int threads) {
+        ArrayList<String> paths = new ArrayList<>();
+        TreeSet<String> deleted = new TreeSet<>();
+        for (Map.Entry<String, String> e : changes.entrySet()) {
+            if (e.getValue() != null) {
+                paths.add(e.getKey());
+            } else {
+                deleted.add(e.getKey());
+            }
+        }
+        PENDING.mkdir();
+        ConcurrentSkipListMap<String, String> failures =
+            new ConcurrentSkipListMap<>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        pool.submit(() -> IntStream.range(0, paths.size()).parallel()
+            .forEach(i -> {
+                String path = paths.get(i);
+                try {
+                    checkWritable(path, deleted);
+                    StagingArea.writeContentFromSha(
+                        changes.get(path), Utils.join(PENDING, "" + i));
+                } catch (RuntimeException excp) {
+                    failures.put(path, String.valueOf(excp.getMessage()));
+                }
+            })).join();
+        pool.shutdown();
+        if (!failures.isEmpty()) {
+            Utils.deleteRecursively(PENDING);
+            Map.Entry<String, String> first = failures.firstEntry();
+            throw new GitletException("Cannot write " + first.getKey()
+                                      + ": " + first.getValue());
+        }
+        ArrayList<File[]> done = new ArrayList<>();
+        String path = null;
+        try {
+            int moved = 0;
+            for (String name : deleted) {
+                path = name;
+                File file = Utils.join(CWD, name);
+                if (file.isFile()) {
+                    move(file, Utils.join(PENDING, "old" + moved), done);
+                    moved += 1;
+                    removeEmptyParents(file, done);
+                }
+            }
+            for (int i = 0; i < paths.size(); i += 1) {
+                path = paths.get(i);
+                File target = Utils.join(CWD, path);
+                if (target.isDirectory()) {
+                    remove(target, done);
+                } else if (target.exists()) {
+                    move(target, Utils.join(PENDING, "old" + moved), done);
+                    moved += 1;
+                }
+                makeParents(target, done);
+                move(Utils.join(PENDING, "" + i), target, done);
+            }
+        } catch (IOException excp) {
+            String message = "Cannot write " + path + ": " + excp.getMessage();
+            if (!undo(done)) {
+                throw new GitletException(message + " The files it replaced "
+                                          + "are in " + PENDING + ".");
+            }
+            Utils.deleteRecursively(PENDING);
+            throw new GitletException(message);
+        }
+        Utils.deleteRecursively(PENDING);
+    }
+
+    /** Make sure the file PATH can be written once the files in DELETED
+     * are gone: it isn't a directory, unless all the files in it are
+     * deleted, and its closest existing ancestor that isn't deleted is a
+     * directory. */
+    private static void checkWritable(String path, Set<String> deleted) {
+        File file = Utils.join(CWD, path);
+        if (file.isDirectory() && !allDeleted(file, path + "/", deleted)) {
+            throw Utils.error("it is a directory.");
+        }
+        for (int i = path.lastIndexOf('/'); i > 0;
+             i = path.lastIndexOf('/', i - 1)) {
+            File dir = Utils.join(CWD, path.substring(0, i));
+            if (dir.isDirectory()) {
+                return;
+            }
+            if (dir.exists() && !deleted.contains(path.substring(0, i))) {
+                throw Utils.error("%s is not a directory.", dir.getName());
+            }
+        }
+    }
+
+    /** Check if every file under DIR, whose path is PREFIX, is in
+     * DELETED. */
+    private static boolean allDeleted(File dir, String prefix,
+                                      Set<String> deleted) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return false;
+        }
+        for (File f : children) {
+            String path = prefix + f.getName();
+            if (f.isDirectory() ? !allDeleted(f, path + "/", deleted)
+                : !deleted.contains(path)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Rename FROM to TO, recording it in DONE. */
+    private static void move(File from, File to, List<File[]> done)
+        throws IOException {
+        Files.move(from.toPath(), to.toPath(),
+                   StandardCopyOption.ATOMIC_MOVE);
+        done.add(new File[] {from, to});
+    }
+
+    /** Remove the empty directory DIR, recording it in DONE as
+     * {DIR, null}. */
+    private static void remove(File dir, List<File[]> done)
+        throws IOException {
+        Files.delete(dir.toPath());
+        done.add(new File[] {dir, null});
+    }
+
+    /** Remove the directories above FILE that are now empty, up to the
+     * working directory, recording them in DONE. */
+    private static void removeEmptyParents(File file, List<File[]> done)
+        throws IOException {
+        File dir = file.getParentFile();
+        while (!dir.equals(CWD)) {
+            String[] children = dir.list();
+            if (children == null || children.length > 0) {
+                return;
+            }
+            remove(dir, done);
+            dir = dir.getParentFile();
+        }
+    }
+
+    /** Make the missing directories above FILE, recording each in DONE
+     * as {null, DIR}. */
+    private static void makeParents(File file, List<File[]> done)
+        throws IOException {
+        ArrayList<File> missing = new ArrayList<>();
+        for (File dir = file.getParentFile(); !dir.exists();
+             dir = dir.getParentFile()) {
+            missing.add(dir);
+        }
+        for (int i = missing.size() - 1; i >= 0; i -= 1) {
+            Files.createDirectory(missing.get(i).toPath());
+            done.add(new File[] {null, missing.get(i)});
+        }
+    }
+
+    /** Undo the steps in DONE, last first: rename each moved file back,
+     * make each removed directory again and remove each one made.
+     * @return false if some step couldn't be undone.
+     */
+    private static boolean undo(List<File[]> done) {
+        boolean ok = true;
+        for (int i = done.size() - 1; i >= 0; i -= 1) {
+            File[] step = done.get(i);
+            try {
+                if (step[1] == null) {
+                    Files.createDirectory(step[0].toPath());
+                } else if (step[0] == null) {
+                    Files.delete(step[1].toPath());
+                } else {
+                    Files.move(step[1].toPath(), step[0].toPath(),
+                               StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException excp) {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /** Lists one directory, forking a task for each subdirectory and for
+     * each chunk of its files. */
+    private static class DirTask extends RecursiveAction {
+        /** A task listing DIR, whose path is PREFIX, into RESULT.
+         * HASHED and CACHED are as for scan. */
+        DirTask(File dir, String prefix, Predicate<String> hashed,
+                boolean cached, Map<String, String> result) {
+            _dir = dir;
+            _prefix = prefix;
+            _hashed = hashed;
+            _cached = cached;
+            _result = result;
+        }
+
+        @Override
+        protected void compute() {
+            File[] children = _dir.listFiles();
+            if (children == null) {
+                return;
+            }
+            ArrayList<RecursiveAction> tasks = new ArrayList<>();
+            ArrayList<String> files = new ArrayList<>();
+            for (File f : children) {
+                String path = _prefix + f.getName();
+                if (f.isDirectory()) {
+                    if (!(_prefix.isEmpty() && f.getName().equals(".gitlet"))) {
+                        tasks.add(new DirTask(f, path + "/", _hashed,
+                                              _cached, _result));
+                    }
+                } else if (f.isFile()) {
+                    files.add(path);
+                }
+            }
+            for (int i = 0; i < files.size(); i += CHUNK) {
+                tasks.add(new FileTask(files.subList(i, Math.min(i + CHUNK,
+                                                                 files.size())),
+                                       _dir, _prefix.length(), _hashed,
+                                       _cached, _result));
+            }
+            invokeAll(tasks);
+        }
+
+        /** The directory listed. */
+        private final File _dir;
+        /** Path of _dir, ending in '/' unless empty. */
+        private final String _prefix;
+        /** Which paths need their blob hash. */
+        private final Predicate<String> _hashed;
+        /** Whether to use the StatCache. */
+        private final boolean _cached;
+        /** Where files are put. */
+        private final Map<String, String> _result;
+    }
+
+    /** Hashes a chunk of the files of one directory. */
+    private static class FileTask extends RecursiveAction {
+        /** A task putting PATHS, files of DIR whose path is PATHS' first
+         * PREFIX characters, into RESULT. HASHED and CACHED are as for
+         * scan. */
+        FileTask(List<String> paths, File dir, int prefix,
+                 Predicate<String> hashed, boolean cached,
+                 Map<String, String> result) {
+            _paths = paths;
+            _dir = dir;
+            _prefix = prefix;
+            _hashed = hashed;
+            _cached = cached;
+            _result = result;
+        }
+
+        @Override
+        protected void compute() {
+            for (String path : _paths) {
+                String sha = UNHASHED;
+                if (_hashed.test(path)) {
+                    sha = _cached ? StatCache.hash(path)
+                        : Blob.hash(new File(_dir, path.substring(_prefix)));
+                }
+                _result.put(path, sha);
+            }
+        }
+
+        /** Paths of the files hashed. */
+        private final List<String> _paths;
+        /** Directory of the files. */
+        private final File _dir;
+        /** Length of the directory part of the paths. */
+        private final int _prefix;
+        /** Which paths need their blob hash. */
+        private final Predicate<String> _hashed;
+        /** Whether to use the StatCache. */
+        private final boolean _cached;
+        /** Where files are put. */
+        private final Map<String, String> _result;
+    }
+}